@@ -0,0 +1,389 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+
+/**
+ * Measures the throughput and allocation rate of each stage of image generation: every doAlgorithm case, the text
+ * fitting done by the constructor, cover scaling, cover decoding, PNG encoding and a whole LockoutMaker batch.
+ * Each stage is measured at several slot sizes and grid shapes.
+ *
+ * Each benchmark is warmed up and then timed over several fixed length iterations. Allocation is measured on the
+ * benchmark thread, so it does not cover the worker threads of the batch benchmark.
+ *
+ * Run from the repository root, so that the images directory can be found:
+ *
+ *     javac -d out src/*.java bench/*.java
+ *     java -cp out ImageGeneratorBenchmark [regex of benchmarks to run]
+ *
+ * To include the SIMD pixel loops, compile and run with the vector module:
+ *
+ *     javac --add-modules jdk.incubator.vector -d out src/*.java src-vector/*.java bench/*.java
+ *     java --add-modules jdk.incubator.vector -cp out ImageGeneratorBenchmark
+ */
+public class ImageGeneratorBenchmark
+{
+    private final static int WARMUP_ITERATIONS = 3;
+    private final static int ITERATIONS = 5;
+    private final static long ITERATION_NANOS = 1_000_000_000L;
+
+    /** Slot sizes, as {width, height} */
+    private final static int[][] SLOT_SIZES = {{200, 150}, {400, 300}, {800, 600}};
+
+    /** Grid shapes, as {numRows, numCols} */
+    private final static int[][] GRIDS = {{1, 1}, {2, 3}, {4, 4}};
+
+    private final static com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final Pattern filter;
+    private final List<String> results = new ArrayList<>();
+
+    private ImageGeneratorBenchmark(Pattern filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * A single operation to measure
+     */
+    interface Op {
+        void run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Pattern filter = Pattern.compile(args.length > 0 ? args[0] : ".*");
+        ImageGeneratorBenchmark bench = new ImageGeneratorBenchmark(filter);
+
+        System.out.println("Using " + PixelKernels.ACTIVE);
+
+        bench.kernels();
+        bench.algorithms();
+        bench.posters();
+        bench.sessions();
+        bench.stages();
+        bench.batch();
+
+        System.out.println();
+        System.out.printf("%-48s %14s %14s %12s %8s%n", "Benchmark", "ops/s", "B/op", "MB/s alloc", "gc ms");
+        for (String result : bench.results) {
+            System.out.println(result);
+        }
+    }
+
+    /**
+     * The pixel loops on a 4K image, scalar and whichever ImageGenerator is using
+     */
+    private void kernels() throws Exception {
+        int width = 3840;
+        int height = 2160;
+        SplittableRandom random = new SplittableRandom(1);
+        int[] src = random.ints(width * height).toArray();
+        int[] dst = new int[width * height];
+        long[] bits = random.longs((width * height + 63) / 64).toArray();
+
+        PixelKernels[] kernels = PixelKernels.ACTIVE == PixelKernels.SCALAR
+                ? new PixelKernels[]{PixelKernels.SCALAR}
+                : new PixelKernels[]{PixelKernels.SCALAR, PixelKernels.ACTIVE};
+        for (PixelKernels kernel : kernels) {
+            String name = kernel == PixelKernels.SCALAR ? "scalar" : "vector";
+
+            measure("embedLsb 3840x2160 " + name, () -> {
+                for (int row = 0; row < height; row++) {
+                    kernel.embedLsb(bits, row * width, dst, row * width, src, row * width, width, 16);
+                }
+            });
+
+            measure("threshold 3840x2160 " + name, () -> {
+                long[] mask = new long[bits.length];
+                for (int row = 0; row < height; row++) {
+                    kernel.threshold(src, row * width, width, mask, row * width);
+                }
+            });
+        }
+    }
+
+    /**
+     * Each doAlgorithm case, on its own, run over every slot of the grid
+     */
+    private void algorithms() throws Exception {
+        for (int[] grid : GRIDS) {
+            for (int[] size : SLOT_SIZES) {
+                int rows = grid[0];
+                int cols = grid[1];
+                int width = size[0] * cols;
+                int height = size[1] * rows;
+                BufferedImage cover = CoverImageCache.getShared()
+                        .getCover(CoverImageCache.getShared().listImages()[0], size[0], size[1]);
+
+                for (int algorithm = 0; algorithm < ImageGenerator.NUM_ALGORITHMS; algorithm++) {
+                    int num = algorithm;
+                    SplittableRandom random = new SplittableRandom(num);
+                    String name = String.format("algorithm%d %dx%d slots %dx%d", num, rows, cols, size[0], size[1]);
+
+                    measure(name, () -> {
+                        ImageGenerator gen = new ImageGenerator("A1-12345", width, height, rows, cols,
+                                random.split());
+                        for (int pos = 0; pos < rows * cols; pos++) {
+                            runAlgorithm(gen, num, pos, cover);
+                        }
+                    });
+                }
+            }
+        }
+    }
+
+    /**
+     * A 4K poster of 8x8 slots showing every algorithm, filled one slot at a time and on the fork/join pool
+     */
+    private void posters() throws Exception {
+        int[] algorithms = new int[64];
+        for (int pos = 0; pos < algorithms.length; pos++) {
+            algorithms[pos] = pos % ImageGenerator.NUM_ALGORITHMS;
+        }
+        SplittableRandom random = new SplittableRandom(1);
+
+        measure("poster 8x8 slots 480x270 sequential", () -> {
+            ImageGenerator gen = new ImageGenerator("A1-12345", 3840, 2160, 8, 8, random.split());
+            for (int pos = 0; pos < algorithms.length; pos++) {
+                gen.doAlgorithm(pos, algorithms[pos]);
+            }
+        });
+
+        measure("poster 8x8 slots 480x270 parallel", () ->
+                new ImageGenerator("A1-12345", 3840, 2160, 8, 8, random.split()).doAlgorithms(algorithms));
+    }
+
+    /**
+     * Whole locks, each algorithm in turn with a cover that needs scaling, from new generators and from a session
+     */
+    private void sessions() throws Exception {
+        BufferedImage fullCover = ImageIO.read(CoverImageCache.getShared().listImages()[0]);
+
+        for (int[] size : SLOT_SIZES) {
+            int width = size[0];
+            int height = size[1];
+            SplittableRandom random = new SplittableRandom(1);
+            int[] counter = new int[1];
+
+            measure(String.format("lock new generator %dx%d", width, height), () -> {
+                int num = counter[0]++ % ImageGenerator.NUM_ALGORITHMS;
+                ImageGenerator gen = new ImageGenerator("A1-12345", width, height, random.split());
+                runAlgorithm(gen, num, 0, fullCover);
+            });
+
+            GeneratorSession session = new GeneratorSession(width, height, 1, 1);
+            measure(String.format("lock session %dx%d", width, height), () -> {
+                int num = counter[0]++ % ImageGenerator.NUM_ALGORITHMS;
+                ImageGenerator gen = session.newGenerator("A1-12345", random.split());
+                runAlgorithm(gen, num, 0, fullCover);
+            });
+        }
+    }
+
+    /**
+     * The stages around the algorithms
+     */
+    private void stages() throws Exception {
+        File coverFile = CoverImageCache.getShared().listImages()[0];
+        BufferedImage fullCover = ImageIO.read(coverFile);
+
+        for (int[] size : SLOT_SIZES) {
+            int width = size[0];
+            int height = size[1];
+
+            for (int[] grid : GRIDS) {
+                int rows = grid[0];
+                int cols = grid[1];
+
+                // Every code is new, so the text fitting is never served from the TextMask cache
+                int[] counter = new int[1];
+                measure(String.format("drawText %dx%d slots %dx%d", rows, cols, width, height), () ->
+                        new ImageGenerator("A1-" + (counter[0]++), width * cols, height * rows, rows, cols));
+
+                measure(String.format("drawText cached %dx%d slots %dx%d", rows, cols, width, height), () ->
+                        new ImageGenerator("A1-12345", width * cols, height * rows, rows, cols));
+            }
+
+            measure(String.format("getImageToFit %dx%d", width, height), () ->
+                    ImageGenerator.scaleToFit(fullCover, width, height));
+
+            // A new cache each time, so every cover is decoded
+            measure(String.format("cover load %dx%d", width, height), () ->
+                    new CoverImageCache(coverFile.getParentFile(), Long.MAX_VALUE).getCover(coverFile, width, height));
+
+            Path atlasFile = Files.createTempFile("bench", ".atlas");
+            atlasFile.toFile().deleteOnExit();
+            CoverAtlas.build(new File[]{coverFile}, List.of(size), atlasFile);
+            CoverAtlas atlas = CoverAtlas.open(atlasFile);
+            measure(String.format("cover load atlas %dx%d", width, height), () ->
+                    atlas.getCover(coverFile, width, height));
+
+            ImageGenerator gen = new ImageGenerator("A1-12345", width, height, new SplittableRandom(1));
+            gen.doAlgorithm(3);
+            File png = File.createTempFile("bench", ".png");
+            png.deleteOnExit();
+            measure(String.format("saveImage %dx%d", width, height), () -> gen.saveImage(png.getPath()));
+
+            PngEncoder fast = new PngEncoder(1, true, true, false);
+            measure(String.format("saveImage level 1 %dx%d", width, height), () ->
+                    gen.saveImage(png.getPath(), fast));
+
+            PngEncoder parallel = new PngEncoder(Deflater.DEFAULT_COMPRESSION, true, true, true);
+            ImageGenerator poster = new ImageGenerator("A1-12345", width * 4, height * 4, 4, 4,
+                    new SplittableRandom(1));
+            for (int pos = 0; pos < 16; pos++) {
+                poster.hideInStatic(pos);
+            }
+            measure(String.format("saveImage poster 4x4 slots %dx%d", width, height), () ->
+                    poster.saveImage(png.getPath()));
+            measure(String.format("saveImage parallel poster 4x4 slots %dx%d", width, height), () ->
+                    poster.saveImage(png.getPath(), parallel));
+        }
+
+        measure("randomImage decode", ImageGenerator::randomImage);
+    }
+
+    /**
+     * A whole LockoutMaker run over a synthetic lock file
+     */
+    private void batch() throws Exception {
+        Path dir = Files.createTempDirectory("lockout-bench");
+        Path lockFile = dir.resolve("Lockout.txt");
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(lockFile))) {
+            out.println("Name\tCode");
+            for (char group = 'A'; group <= 'Z'; group++) {
+                for (int i = 0; i < ImageGenerator.NUM_ALGORITHMS; i++) {
+                    out.println(group + "" + i + "\t" + (1000 + group * 10 + i));
+                }
+            }
+        }
+        Path outDir = dir.resolve("out");
+
+        measure("LockoutMaker batch of 156 locks", () -> LockoutMaker.main(new String[]{
+                "--seed", "1", "--out", outDir.toString(), lockFile.toString()}));
+
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    private static void runAlgorithm(ImageGenerator gen, int num, int pos, BufferedImage cover) {
+        switch (num) {
+            case 0:
+                gen.hideInRed(pos, cover);
+                break;
+            case 1:
+                gen.hideInGreen(pos, cover);
+                break;
+            case 2:
+                gen.hideInBlue(pos, cover);
+                break;
+            case 3:
+                gen.hideInStatic(pos);
+                break;
+            case 4:
+                gen.hideGradientColor(pos);
+                break;
+            case 5:
+                gen.hideBinaryData(pos, cover);
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid algorithm number " + num);
+        }
+    }
+
+    private void measure(String name, Op op) throws Exception {
+        if (!filter.matcher(name).find()) {
+            return;
+        }
+
+        try {
+            op.run();
+        } catch (Exception | Error e) {
+            String result = String.format("%-48s failed: %s", name, e);
+            System.out.println(result);
+            results.add(result);
+            return;
+        }
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iteration(op);
+        }
+
+        double[] opsPerSecond = new double[ITERATIONS];
+        long ops = 0;
+        long nanos = 0;
+        long bytes = 0;
+        long gcMillis = gcMillis();
+        for (int i = 0; i < ITERATIONS; i++) {
+            long[] iteration = iteration(op);
+            ops += iteration[0];
+            nanos += iteration[1];
+            bytes += iteration[2];
+            opsPerSecond[i] = iteration[0] * 1e9 / iteration[1];
+        }
+        gcMillis = gcMillis() - gcMillis;
+
+        double mean = ops * 1e9 / nanos;
+        double variance = 0;
+        for (double sample : opsPerSecond) {
+            variance += (sample - mean) * (sample - mean);
+        }
+        double error = Math.sqrt(variance / (ITERATIONS - 1));
+
+        String result = String.format("%-48s %8.1f +-%3.0f%% %14d %12.1f %8d", name, mean, 100 * error / mean,
+                bytes / ops, bytes / (nanos / 1e9) / (1024 * 1024), gcMillis);
+        System.out.println(result);
+        results.add(result);
+    }
+
+    /**
+     * Run the operation repeatedly for one iteration
+     *
+     * @return the number of operations, the time taken and the bytes allocated by this thread
+     */
+    private static long[] iteration(Op op) throws Exception {
+        long threadId = Thread.currentThread().getId();
+        long allocated = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        long elapsed;
+        long ops = 0;
+        do {
+            op.run();
+            ops++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ITERATION_NANOS);
+
+        return new long[]{ops, elapsed, threads.getThreadAllocatedBytes(threadId) - allocated};
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    static {
+        // Keep ImageIO from buffering through temporary files, which would be measured as part of each stage
+        ImageIO.setUseCache(false);
+        try {
+            CoverImageCache.getShared().listImages();
+        } catch (IOException e) {
+            throw new ExceptionInInitializerError("Run from the repository root: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,95 @@
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The pixel loops of PixelKernels on the widest int vectors the CPU has. Each step takes as many pixels as the vector
+ * has lanes, along with that many bits of the bit array. A lane's bit is moved between the lane and its place in the
+ * bits by shifting by the lane number, rather than through a VectorMask, which JDK 17 does not turn into a single
+ * instruction and allocates instead.
+ *
+ * This needs the jdk.incubator.vector module to compile and to run. PixelKernels loads it by name only once it has
+ * checked that the module is present.
+ */
+class VectorPixelKernels extends PixelKernels
+{
+    private final static VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+    private final static int LANES = SPECIES.length();
+    private final static IntVector LANE_NUMBERS = IntVector.zero(SPECIES).addIndex(1);
+
+    /** The sum of red, green and blue from which the average is above 127 */
+    private final static int THRESHOLD_SUM = 128 * 3;
+
+    VectorPixelKernels() {
+        // Each vector's bits are handled as an int
+        if (LANES > 32) {
+            throw new IllegalStateException(SPECIES + " has more than 32 lanes");
+        }
+    }
+
+    @Override
+    void embedLsb(long[] bits, int bitIndex, int[] dst, int dstIndex, int[] src, int srcIndex, int length,
+                  int shift) {
+        int bit = 1 << shift;
+        int keep = ~bit;
+
+        int i = 0;
+        for (int upper = SPECIES.loopBound(length); i < upper; i += LANES) {
+            // Spread one bit to each lane by shifting it down by the lane number
+            IntVector lanes = IntVector.broadcast(SPECIES, (int) bitsAt(bits, bitIndex + i))
+                    .lanewise(VectorOperators.LSHR, LANE_NUMBERS).and(1).lanewise(VectorOperators.LSHL, shift);
+            IntVector.fromArray(SPECIES, src, srcIndex + i).and(keep).or(0xff000000).or(lanes)
+                    .intoArray(dst, dstIndex + i);
+        }
+
+        SCALAR.embedLsb(bits, bitIndex + i, dst, dstIndex + i, src, srcIndex + i, length - i, shift);
+    }
+
+    @Override
+    void threshold(int[] argb, int index, int length, long[] bits, int bitIndex) {
+        int i = 0;
+        for (int upper = SPECIES.loopBound(length); i < upper; i += LANES) {
+            IntVector pixels = IntVector.fromArray(SPECIES, argb, index + i);
+            IntVector sum = pixels.lanewise(VectorOperators.LSHR, 16).and(0xff)
+                    .add(pixels.lanewise(VectorOperators.LSHR, 8).and(0xff))
+                    .add(pixels.and(0xff));
+
+            // (THRESHOLD_SUM - 1 - sum) >>> 31 is 1 when sum >= THRESHOLD_SUM and 0 otherwise
+            int above = sum.neg().add(THRESHOLD_SUM - 1).lanewise(VectorOperators.LSHR, 31)
+                    .lanewise(VectorOperators.LSHL, LANE_NUMBERS).reduceLanes(VectorOperators.OR);
+            orBits(bits, bitIndex + i, above & 0xffffffffL);
+        }
+
+        SCALAR.threshold(argb, index + i, length - i, bits, bitIndex + i);
+    }
+
+    /**
+     * @return the 64 bits starting at index, as far as the array goes
+     */
+    private static long bitsAt(long[] bits, int index) {
+        int word = index >>> 6;
+        int offset = index & 63;
+        long value = bits[word] >>> offset;
+        if (offset != 0 && word + 1 < bits.length) {
+            value |= bits[word + 1] << (64 - offset);
+        }
+        return value;
+    }
+
+    /**
+     * Set the bits of one vector's lanes, starting at index
+     */
+    private static void orBits(long[] bits, int index, long lanes) {
+        int word = index >>> 6;
+        int offset = index & 63;
+        bits[word] |= lanes << offset;
+        if (offset + LANES > 64) {
+            bits[word + 1] |= lanes >>> (64 - offset);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "vector pixel loops (" + SPECIES + ")";
+    }
+}
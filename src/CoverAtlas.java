@@ -0,0 +1,249 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A single file holding every cover image already cropped and scaled to each slot size, as raw ARGB pixels, so that
+ * covers can be copied out of memory instead of decoded. The file is memory mapped, so the JVMs on a machine share one
+ * copy of it through the page cache.
+ *
+ * The file starts with an index of its covers. Each cover records the name, size and modification time of the image
+ * it was made from, and is only used while the image is unchanged.
+ *
+ * The atlas is built from the images directory with:
+ *
+ *     java CoverAtlas [--size WIDTHxHEIGHT]... [images dir] [atlas file]
+ */
+public class CoverAtlas
+{
+    /** The atlas file CoverImageCache looks for in the images directory */
+    public final static String DEFAULT_FILE_NAME = "covers.atlas";
+
+    /** The slot size of the images LockoutMaker generates, built when no sizes are given */
+    private final static int[] DEFAULT_SIZE = {200, 150};
+
+    private final static byte[] MAGIC = "LKATLAS1".getBytes(StandardCharsets.US_ASCII);
+
+    /** Pixels start on a multiple of this many bytes, so that they can be read as ints */
+    private final static int ALIGNMENT = 64;
+
+    private final Path path;
+    private final IntBuffer pixels;
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    private CoverAtlas(Path path, MappedByteBuffer buffer) throws IOException {
+        this.path = path;
+
+        ByteBuffer header = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(path + " is not a cover atlas");
+            }
+
+            int count = header.getInt();
+            for (int i = 0; i < count; i++) {
+                byte[] name = new byte[header.getShort() & 0xffff];
+                header.get(name);
+                Entry entry = new Entry(new String(name, StandardCharsets.UTF_8), header.getLong(), header.getLong(),
+                        header.getInt(), header.getInt(), header.getLong());
+
+                if (entry.offset % 4 != 0 || entry.offset + 4L * entry.width * entry.height > buffer.capacity()) {
+                    throw new IOException(path + " is damaged, the pixels of " + entry.name + " are out of place");
+                }
+                entries.put(key(entry.name, entry.width, entry.height), entry);
+            }
+        } catch (RuntimeException e) {
+            throw new IOException(path + " is damaged: " + e, e);
+        }
+
+        this.pixels = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+
+    /**
+     * Map an atlas file into memory
+     *
+     * @param path the atlas file
+     * @return the atlas
+     * @throws IOException if the file cannot be read or is not an atlas
+     */
+    public static CoverAtlas open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new CoverAtlas(path, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Copy a cover out of the atlas
+     *
+     * @param file the cover image file
+     * @param width the width of the slot the cover will fill
+     * @param height the height of the slot the cover will fill
+     * @return the cover cropped and scaled to the slot, or null if the atlas does not hold the image at that size or
+     * the image has changed since the atlas was built
+     */
+    public BufferedImage getCover(File file, int width, int height) {
+        Entry entry = entries.get(key(file.getName(), width, height));
+        if (entry == null || entry.fileLength != file.length() || entry.lastModified != file.lastModified()) {
+            return null;
+        }
+
+        BufferedImage cover = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] data = ((DataBufferInt) cover.getRaster().getDataBuffer()).getData();
+        pixels.get((int) (entry.offset / 4), data, 0, width * height);
+        return cover;
+    }
+
+    /**
+     * @return the number of covers in the atlas
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public String toString() {
+        return "CoverAtlas " + path + " (" + entries.size() + " covers)";
+    }
+
+    /**
+     * Build an atlas of every image in a directory at each of the given slot sizes
+     *
+     * @param images the cover image files
+     * @param sizes the slot sizes, as {width, height}
+     * @param path the atlas file to write, which is replaced only once it has been completely written
+     * @throws IOException if an image cannot be decoded or the atlas cannot be written
+     */
+    public static void build(File[] images, List<int[]> sizes, Path path) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        int headerBytes = MAGIC.length + 4;
+        for (File image : images) {
+            for (int[] size : sizes) {
+                Entry entry = new Entry(image.getName(), image.length(), image.lastModified(), size[0], size[1], 0);
+                entries.add(entry);
+                headerBytes += 2 + entry.name.getBytes(StandardCharsets.UTF_8).length + 8 + 8 + 4 + 4 + 8;
+            }
+        }
+
+        long offset = align(headerBytes);
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            entries.set(i, new Entry(entry.name, entry.fileLength, entry.lastModified, entry.width, entry.height,
+                    offset));
+            offset = align(offset + 4L * entry.width * entry.height);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate((int) align(headerBytes)).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(MAGIC);
+        header.putInt(entries.size());
+        for (Entry entry : entries) {
+            byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+            header.putShort((short) name.length);
+            header.put(name);
+            header.putLong(entry.fileLength);
+            header.putLong(entry.lastModified);
+            header.putInt(entry.width);
+            header.putInt(entry.height);
+            header.putLong(entry.offset);
+        }
+        header.rewind();
+
+        Path absolute = path.toAbsolutePath();
+        Path temp = absolute.resolveSibling(absolute.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(header);
+
+            int index = 0;
+            for (File image : images) {
+                for (int[] size : sizes) {
+                    Entry entry = entries.get(index++);
+                    BufferedImage cover = CoverImageCache.decode(image, size[0], size[1]);
+                    int[] argb = cover.getRGB(0, 0, size[0], size[1], null, 0, size[0]);
+
+                    ByteBuffer data = ByteBuffer.allocate(argb.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+                    data.asIntBuffer().put(argb);
+                    channel.write(data, entry.offset);
+                }
+            }
+        }
+
+        Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<int[]> sizes = new ArrayList<>();
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--size") && i + 1 < args.length) {
+                String[] size = args[++i].split("x");
+                sizes.add(new int[]{Integer.parseInt(size[0]), Integer.parseInt(size[1])});
+            }
+            else {
+                paths.add(args[i]);
+            }
+        }
+        if (paths.size() > 2) {
+            System.err.println("Usage: CoverAtlas [--size WIDTHxHEIGHT]... [images dir] [atlas file]");
+            System.exit(2);
+        }
+        if (sizes.isEmpty()) {
+            sizes.add(DEFAULT_SIZE);
+        }
+
+        File imagesDir = paths.size() > 0 ? new File(paths.get(0)) : CoverImageCache.defaultImagesDir();
+        Path atlasFile = paths.size() > 1 ? Paths.get(paths.get(1)) : new File(imagesDir, DEFAULT_FILE_NAME).toPath();
+
+        File[] images = new CoverImageCache(imagesDir, 0).listImages();
+        long start = System.nanoTime();
+        build(images, sizes, atlasFile);
+        System.out.printf("Wrote %d covers at %d sizes to %s (%d KB) in %.2fs%n", images.length, sizes.size(),
+                atlasFile, Files.size(atlasFile) / 1024, (System.nanoTime() - start) / 1e9);
+    }
+
+    private static long align(long offset) {
+        return (offset + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    private static String key(String name, int width, int height) {
+        return name + "/" + width + "x" + height;
+    }
+
+    private static class Entry {
+        final String name;
+        final long fileLength;
+        final long lastModified;
+        final int width;
+        final int height;
+
+        /** The position of the cover's first pixel in the file */
+        final long offset;
+
+        Entry(String name, long fileLength, long lastModified, int width, int height, long offset) {
+            this.name = name;
+            this.fileLength = fileLength;
+            this.lastModified = lastModified;
+            this.width = width;
+            this.height = height;
+            this.offset = offset;
+        }
+    }
+}
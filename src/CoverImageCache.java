@@ -0,0 +1,390 @@
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.random.RandomGenerator;
+
+/**
+ * A shared, thread-safe cache of cover images that have already been cropped and scaled to fit a slot. Decoding a
+ * full size photo is by far the most expensive part of generating an image, so each (file, width, height) combination
+ * is only decoded once and then kept until the cache grows past its memory cap, at which point the least recently
+ * used covers are evicted.
+ *
+ * The images directory is listed once and only listed again when its modification time changes.
+ *
+ * If the cache has a CoverAtlas, covers it holds are copied out of the atlas instead of decoded. The shared cache uses
+ * the atlas file named by the lockout.coverAtlas system property, or covers.atlas in the images directory if there is
+ * one.
+ *
+ * Images returned from the cache are shared between threads and must not be modified.
+ */
+public class CoverImageCache
+{
+    /** The default memory cap, used unless the lockout.coverCache.bytes system property is set */
+    public final static long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+    private static CoverImageCache shared;
+
+    private final File imagesDir;
+
+    private final LinkedHashMap<Key, BufferedImage> covers = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<Key, Object> loading = new HashMap<>();
+    private long maxBytes;
+    private long usedBytes;
+
+    private File[] listing;
+    private long listingModified;
+
+    private long hits;
+    private long misses;
+
+    private CoverAtlas atlas;
+
+    /**
+     * A cover cache for the images in the given directory
+     *
+     * @param imagesDir the directory containing the cover images
+     * @param maxBytes the maximum number of bytes of pixel data to keep before evicting covers
+     */
+    public CoverImageCache(File imagesDir, long maxBytes) {
+        this.imagesDir = imagesDir;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Get the cache shared by every ImageGenerator, backed by the images directory in the working directory.
+     *
+     * @return the shared cover cache
+     */
+    public static synchronized CoverImageCache getShared() {
+        if (shared == null) {
+            shared = new CoverImageCache(defaultImagesDir(),
+                    Long.getLong("lockout.coverCache.bytes", DEFAULT_MAX_BYTES));
+
+            String atlasFile = System.getProperty("lockout.coverAtlas");
+            File file = atlasFile != null
+                    ? new File(atlasFile)
+                    : new File(defaultImagesDir(), CoverAtlas.DEFAULT_FILE_NAME);
+            if (file.isFile()) {
+                try {
+                    shared.setAtlas(CoverAtlas.open(file.toPath()));
+                } catch (IOException e) {
+                    System.err.println("Decoding covers, the cover atlas could not be used: " + e.getMessage());
+                }
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Find the images directory in the current working directory
+     *
+     * @return the default images directory
+     */
+    public static File defaultImagesDir() {
+        Path thisPath = Paths.get("");
+
+        String originalDir = thisPath.toAbsolutePath().toString();
+        if (!originalDir.endsWith(File.separator)) {
+            originalDir += File.separator;
+        }
+        String imagePath = originalDir + "images" + File.separator;
+        try {
+            imagePath = URLDecoder.decode(imagePath, "UTF-8");
+        } catch (UnsupportedEncodingException ignored) {        }
+
+        return new File(imagePath);
+    }
+
+    /**
+     * Use an atlas of prescaled covers instead of decoding the covers it holds
+     *
+     * @param atlas the atlas, or null to always decode covers
+     */
+    public synchronized void setAtlas(CoverAtlas atlas) {
+        this.atlas = atlas;
+    }
+
+    /**
+     * Change the memory cap of this cache, evicting covers if the cache is now too large.
+     *
+     * @param maxBytes the maximum number of bytes of pixel data to keep
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    /**
+     * Get the list of cover images, only rescanning the directory if it has changed since it was last listed.
+     *
+     * @return the png and jpg files in the images directory
+     * @throws IOException if the images directory does not exist
+     */
+    public synchronized File[] listImages() throws IOException {
+        if (!imagesDir.exists()) {
+            throw new FileNotFoundException("image folder not found");
+        }
+
+        long modified = imagesDir.lastModified();
+        if (listing == null || modified != listingModified) {
+            File[] images = imagesDir.listFiles((file, name) -> isImageFile(name));
+            if (images == null) {
+                throw new IOException("could not list image folder " + imagesDir);
+            }
+            Arrays.sort(images);
+
+            listing = images;
+            listingModified = modified;
+            forgetMissing();
+        }
+
+        return listing;
+    }
+
+    /**
+     * @param name the name of a file in the images directory
+     * @return true if the file is a cover image
+     */
+    public static boolean isImageFile(String name) {
+        name = name.toLowerCase();
+        return name.endsWith(".png") || name.endsWith(".jpg");
+    }
+
+    /**
+     * Choose a random cover image file
+     *
+     * @param random the random generator to choose with
+     * @return a random file from the images directory
+     * @throws IOException if the images directory does not exist or is empty
+     */
+    public File randomImageFile(RandomGenerator random) throws IOException {
+        File[] images = listImages();
+        if (images.length == 0) {
+            throw new FileNotFoundException("no images found in " + imagesDir);
+        }
+
+        return images[random.nextInt(images.length)];
+    }
+
+    /**
+     * Get a random cover image, cropped and scaled to the given size
+     *
+     * @param random the random generator to choose with
+     * @param width the width of the slot the cover will fill
+     * @param height the height of the slot the cover will fill
+     * @return the scaled cover, which must not be modified
+     * @throws IOException if the image cannot be loaded
+     */
+    public BufferedImage randomCover(RandomGenerator random, int width, int height) throws IOException {
+        return getCover(randomImageFile(random), width, height);
+    }
+
+    /**
+     * Get a cover image, cropped and scaled to the given size. The image is decoded only if it is not already cached.
+     *
+     * @param file the image file to load
+     * @param width the width of the slot the cover will fill
+     * @param height the height of the slot the cover will fill
+     * @return the scaled cover, which must not be modified
+     * @throws IOException if the image cannot be loaded
+     */
+    public BufferedImage getCover(File file, int width, int height) throws IOException {
+        Key key = new Key(file, width, height);
+
+        Object lock;
+        synchronized (this) {
+            BufferedImage cover = covers.get(key);
+            if (cover != null) {
+                hits++;
+                Metrics.count(Metrics.Counter.COVER_HITS, 1);
+                return cover;
+            }
+            misses++;
+            Metrics.count(Metrics.Counter.COVER_MISSES, 1);
+            lock = loading.computeIfAbsent(key, k -> new Object());
+        }
+
+        // Only one thread decodes a given cover, the rest wait for it to finish
+        synchronized (lock) {
+            synchronized (this) {
+                BufferedImage cover = covers.get(key);
+                if (cover != null) {
+                    return cover;
+                }
+            }
+
+            CoverAtlas coverAtlas;
+            synchronized (this) {
+                coverAtlas = atlas;
+            }
+
+            BufferedImage cover;
+            long start = Metrics.start();
+            try {
+                cover = coverAtlas != null ? coverAtlas.getCover(file, width, height) : null;
+                if (cover != null) {
+                    Metrics.count(Metrics.Counter.COVER_ATLAS_HITS, 1);
+                }
+                else {
+                    cover = decode(file, width, height);
+                }
+                Metrics.end(Metrics.Stage.COVER_LOAD, start);
+
+                // The cover is cached before its loading lock is dropped, so a thread arriving in between finds it
+                // rather than decoding it again
+                synchronized (this) {
+                    if (covers.put(key, cover) == null) {
+                        usedBytes += key.bytes();
+                    }
+                    evict();
+                }
+            }
+            finally {
+                synchronized (this) {
+                    loading.remove(key);
+                }
+            }
+            return cover;
+        }
+    }
+
+    /**
+     * Remove every cover from the cache
+     */
+    public synchronized void clear() {
+        covers.clear();
+        usedBytes = 0;
+        listing = null;
+    }
+
+    /**
+     * Remove the covers of one image file from the cache, because the file has been changed, added or removed, and
+     * list the images again the next time they are needed
+     *
+     * @param file the image file
+     */
+    public synchronized void forget(File file) {
+        Iterator<Key> it = covers.keySet().iterator();
+        while (it.hasNext()) {
+            Key key = it.next();
+            if (key.file.getName().equals(file.getName())) {
+                usedBytes -= key.bytes();
+                it.remove();
+            }
+        }
+        listing = null;
+    }
+
+    /**
+     * @return the number of requests satisfied from the cache
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of requests that had to decode an image
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Decode only the part of the image that will be kept once it is scaled to fit the slot, skipping rows and
+     * columns of that part so that it is decoded at no less than the size of the slot.
+     */
+    static BufferedImage decode(File file, int width, int height) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            if (in == null) {
+                throw new FileNotFoundException("could not open image " + file);
+            }
+
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IOException("could not decode image " + file);
+            }
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+
+                Rectangle slice = ImageGenerator.sliceToFit(reader.getWidth(0), reader.getHeight(0), width, height);
+                int subsampling = Math.max(1, Math.min(slice.width / width, slice.height / height));
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(slice);
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+
+                return ImageGenerator.scaleToFit(reader.read(0, param), width, height);
+            }
+            finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private void evict() {
+        Iterator<Key> it = covers.keySet().iterator();
+        while (usedBytes > maxBytes && it.hasNext()) {
+            usedBytes -= it.next().bytes();
+            it.remove();
+        }
+    }
+
+    private void forgetMissing() {
+        Iterator<Key> it = covers.keySet().iterator();
+        while (it.hasNext()) {
+            Key key = it.next();
+            if (Arrays.binarySearch(listing, key.file) < 0) {
+                usedBytes -= key.bytes();
+                it.remove();
+            }
+        }
+    }
+
+    private static class Key {
+        final File file;
+        final int width;
+        final int height;
+
+        Key(File file, int width, int height) {
+            this.file = file;
+            this.width = width;
+            this.height = height;
+        }
+
+        long bytes() {
+            return 4L * width * height;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return width == other.width && height == other.height && file.equals(other.file);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(file, width, height);
+        }
+    }
+}
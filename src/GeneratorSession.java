@@ -0,0 +1,100 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Makes ImageGenerators of one shape that all draw into the same image, so that generating many locks of the same
+ * size does not allocate a new image, scaled covers and scratch arrays for each one. Each new generator clears the
+ * image and takes it over from the one before, which must no longer be used, or have its image saved, once the next
+ * generator is made.
+ *
+ * A session must only be used by one thread at a time. forThread keeps a session for each thread.
+ */
+public class GeneratorSession
+{
+    /** The number of shapes forThread keeps a session for on each thread */
+    private final static int SESSIONS_PER_THREAD = 4;
+
+    private final static ThreadLocal<Map<String, GeneratorSession>> threadSessions = ThreadLocal.withInitial(() ->
+            new LinkedHashMap<>(8, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, GeneratorSession> eldest) {
+                    return size() > SESSIONS_PER_THREAD;
+                }
+            });
+
+    final int rows;
+    final int cols;
+    final BufferedImage image;
+
+    /** Scratch space for each slot, so that the slots of a parallel render do not share any */
+    private final int[][] columns;
+    private final BufferedImage[] scaled;
+
+    /**
+     * A session for generators of the given shape
+     *
+     * @param width the width of the image to hide the code in
+     * @param height the height of the image to hide the code in
+     * @param numRows the number of rows of slots to divide the image into
+     * @param numCols the number of columns of slots to divide the image into
+     */
+    public GeneratorSession(int width, int height, int numRows, int numCols) {
+        this.rows = numRows;
+        this.cols = numCols;
+        this.image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        this.columns = new int[numRows * numCols][];
+        this.scaled = new BufferedImage[numRows * numCols];
+    }
+
+    /**
+     * Get the calling thread's session for the given shape, making it if this thread has not used the shape recently
+     *
+     * @param width the width of the image to hide the code in
+     * @param height the height of the image to hide the code in
+     * @param numRows the number of rows of slots to divide the image into
+     * @param numCols the number of columns of slots to divide the image into
+     * @return the thread's session
+     */
+    public static GeneratorSession forThread(int width, int height, int numRows, int numCols) {
+        String shape = width + "x" + height + "/" + numRows + "x" + numCols;
+        return threadSessions.get().computeIfAbsent(shape, key -> new GeneratorSession(width, height, numRows, numCols));
+    }
+
+    /**
+     * Make a generator that hides a code in this session's image, clearing whatever the last generator drew.
+     *
+     * @param code the code to hide
+     * @param random the source of every random choice the generator makes
+     * @return the generator, which is usable until the next call
+     */
+    public ImageGenerator newGenerator(String code, SplittableRandom random) {
+        Arrays.fill(((DataBufferInt) image.getRaster().getDataBuffer()).getData(), 0);
+        return new ImageGenerator(code, this, random);
+    }
+
+    /**
+     * @return a slot's column array, of the given length
+     */
+    int[] columns(int pos, int length) {
+        if (columns[pos] == null || columns[pos].length != length) {
+            columns[pos] = new int[length];
+        }
+        return columns[pos];
+    }
+
+    /**
+     * @return a slot's image for scaled covers, of the given size
+     */
+    BufferedImage scaled(int pos, int width, int height) {
+        BufferedImage img = scaled[pos];
+        if (img == null || img.getWidth() != width || img.getHeight() != height) {
+            img = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            scaled[pos] = img;
+        }
+        return img;
+    }
+}
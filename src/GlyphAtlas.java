@@ -0,0 +1,434 @@
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.font.FontRenderContext;
+import java.awt.font.LineMetrics;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The glyphs of the font TextMask draws in, rasterized once at a large size along with the font's metrics, so that
+ * text masks can be drawn by copying glyphs instead of through Java2D. Starting Java2D's font system takes longer
+ * than the rest of a short run, and each new piece of text costs a few milliseconds more.
+ *
+ * Text drawn from the atlas is laid out with the font's own advances and line metrics, and each glyph is scaled down
+ * from the large size by covering the pixels that are at least half covered by the glyph, so that it looks the same
+ * as text Java2D draws without antialiasing, though it may differ by a pixel here and there. Those pixels are enough
+ * to fail verification against text drawn the other way, so the manifest records which renderer drew each image, by
+ * the atlas's id, and LockVerifier draws the text the same way.
+ *
+ * The atlas is built with Java2D, once, by:
+ *
+ *     java GlyphAtlas [atlas file]
+ *
+ * TextMask uses the atlas given by the lockout.glyphAtlas system property, or the glyphs.atlas file in the images
+ * directory, when there is one. Text with characters the atlas does not hold is drawn through Java2D.
+ */
+public class GlyphAtlas
+{
+    /** The atlas file looked for in the images directory */
+    public final static String DEFAULT_FILE_NAME = "glyphs.atlas";
+
+    private final static byte[] MAGIC = "LKGLYPH1".getBytes(StandardCharsets.US_ASCII);
+
+    /** The font size the glyphs are rasterized at */
+    private final static int REFERENCE_SIZE = 128;
+
+    /** Room around each glyph while it is rasterized, for parts that reach past its advance or line */
+    private final static int PADDING = REFERENCE_SIZE / 2;
+
+    private static GlyphAtlas shared;
+    private static boolean sharedLoaded;
+
+    /** The font the glyphs were rasterized from */
+    final String fontName;
+
+    /** The line metrics of the font at the reference size */
+    private final float ascent;
+    private final float descent;
+    private final float leading;
+
+    private final Map<Character, Glyph> glyphs = new HashMap<>();
+
+    /** Identifies the atlas by its contents, set once all of its glyphs are in place */
+    private String id;
+
+    private GlyphAtlas(String fontName, float ascent, float descent, float leading) {
+        this.fontName = fontName;
+        this.ascent = ascent;
+        this.descent = descent;
+        this.leading = leading;
+    }
+
+    /**
+     * Get the atlas TextMask uses, loading it the first time
+     *
+     * @return the atlas, or null if there is none
+     */
+    public static synchronized GlyphAtlas getShared() {
+        if (!sharedLoaded) {
+            sharedLoaded = true;
+
+            String atlasFile = System.getProperty("lockout.glyphAtlas");
+            File file = atlasFile != null
+                    ? new File(atlasFile)
+                    : new File(CoverImageCache.defaultImagesDir(), DEFAULT_FILE_NAME);
+            try {
+                shared = read(file.toPath());
+            } catch (NoSuchFileException e) {
+                // Text is drawn through Java2D
+            } catch (IOException e) {
+                System.err.println("Drawing text through Java2D, the glyph atlas could not be used: "
+                        + e.getMessage());
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * @return the start of the SHA-256 of the atlas file, which differs between atlases that draw differently
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @param text some text
+     * @return true if the atlas holds every character of the text
+     */
+    public boolean canDraw(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (!glyphs.containsKey(text.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param text text the atlas can draw
+     * @param size a font size
+     * @return the width of the text at the size
+     */
+    public int getWidth(String text, float size) {
+        float scale = advanceScale(size);
+        int width = 0;
+        for (int i = 0; i < text.length(); i++) {
+            width += glyphs.get(text.charAt(i)).advance(scale);
+        }
+        return width;
+    }
+
+    /**
+     * @param size a font size
+     * @return the height of a line of text at the size
+     */
+    public float getHeight(float size) {
+        return (ascent + descent + leading) * size / REFERENCE_SIZE;
+    }
+
+    /**
+     * Draw text into a mask one bit per pixel, setting the bit of each pixel the text covers. Each character starts
+     * on a whole pixel.
+     *
+     * @param text text the atlas can draw
+     * @param size the font size
+     * @param x the left of the text
+     * @param baseline the baseline of the text
+     * @param bits the mask, with bit (y * width + x) for pixel (x, y)
+     * @param width the width of the mask
+     * @param height the height of the mask
+     */
+    public void draw(String text, float size, int x, int baseline, long[] bits, int width, int height) {
+        float scale = size / REFERENCE_SIZE;
+        float advanceScale = advanceScale(size);
+        for (int i = 0; i < text.length(); i++) {
+            Glyph glyph = glyphs.get(text.charAt(i));
+            glyph.draw(x + glyph.left * scale, baseline + glyph.top * scale, scale, bits, width, height);
+            x += glyph.advance(advanceScale);
+        }
+    }
+
+    /**
+     * Without fractional metrics, Java2D lays text out with the advances of the nearest whole font size
+     */
+    private static float advanceScale(float size) {
+        return Math.max(1, Math.round(size)) / (float) REFERENCE_SIZE;
+    }
+
+    /**
+     * Rasterize the printable ASCII characters of a font
+     *
+     * @param font the font, at any size
+     * @return the atlas of the font
+     */
+    public static GlyphAtlas build(Font font) {
+        Font large = font.deriveFont((float) REFERENCE_SIZE);
+        FontRenderContext fractional = new FontRenderContext(null, false, true);
+        LineMetrics metrics = large.getLineMetrics("0", fractional);
+        GlyphAtlas atlas = new GlyphAtlas(font.getName(), metrics.getAscent(), metrics.getDescent(),
+                metrics.getLeading());
+
+        int baseline = PADDING + (int) Math.ceil(metrics.getAscent());
+        for (char c = ' '; c <= '~'; c++) {
+            String s = String.valueOf(c);
+            float advance = (float) large.getStringBounds(s, fractional).getWidth();
+
+            BufferedImage img = new BufferedImage((int) Math.ceil(advance) + 2 * PADDING,
+                    (int) Math.ceil(atlas.getHeight(REFERENCE_SIZE)) + 2 * PADDING, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = img.createGraphics();
+            g.setFont(large);
+            g.drawString(s, PADDING, baseline);
+            g.dispose();
+
+            // Keep only the rows and columns the glyph covers
+            int minX = img.getWidth();
+            int minY = img.getHeight();
+            int maxX = -1;
+            int maxY = -1;
+            for (int y = 0; y < img.getHeight(); y++) {
+                for (int x = 0; x < img.getWidth(); x++) {
+                    if ((img.getRGB(x, y) >>> 24) != 0) {
+                        minX = Math.min(minX, x);
+                        minY = Math.min(minY, y);
+                        maxX = Math.max(maxX, x);
+                        maxY = Math.max(maxY, y);
+                    }
+                }
+            }
+
+            Glyph glyph;
+            if (maxX < 0) {
+                glyph = new Glyph(advance, 0, 0, 0, 0, new byte[0]);
+            }
+            else {
+                glyph = new Glyph(advance, minX - PADDING, minY - baseline, maxX - minX + 1, maxY - minY + 1, null);
+                for (int y = 0; y < glyph.height; y++) {
+                    for (int x = 0; x < glyph.width; x++) {
+                        if ((img.getRGB(minX + x, minY + y) >>> 24) != 0) {
+                            int index = y * glyph.width + x;
+                            glyph.pixels[index >>> 3] |= (byte) (1 << (index & 7));
+                        }
+                    }
+                }
+            }
+            atlas.glyphs.put(c, glyph.withCoverage());
+        }
+
+        atlas.id = idOf(atlas.toBytes());
+        return atlas;
+    }
+
+    /**
+     * Read an atlas file
+     *
+     * @param path the atlas file
+     * @return the atlas
+     * @throws IOException if the file cannot be read or is not an atlas
+     */
+    public static GlyphAtlas read(Path path) throws IOException {
+        byte[] contents = Files.readAllBytes(path);
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(contents))) {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException(path + " is not a glyph atlas");
+            }
+            if (in.readInt() != REFERENCE_SIZE) {
+                throw new IOException(path + " was built at a different size, build it again");
+            }
+
+            GlyphAtlas atlas = new GlyphAtlas(in.readUTF(), in.readFloat(), in.readFloat(), in.readFloat());
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                char c = in.readChar();
+                float advance = in.readFloat();
+                int left = in.readInt();
+                int top = in.readInt();
+                int width = in.readInt();
+                int height = in.readInt();
+                if (width < 0 || height < 0 || width * height > 4 * REFERENCE_SIZE * REFERENCE_SIZE) {
+                    throw new IOException(path + " is damaged, glyph " + c + " is " + width + "x" + height);
+                }
+
+                byte[] pixels = new byte[(width * height + 7) >>> 3];
+                in.readFully(pixels);
+                atlas.glyphs.put(c, new Glyph(advance, left, top, width, height, pixels).withCoverage());
+            }
+            atlas.id = idOf(contents);
+            return atlas;
+        }
+    }
+
+    private static String idOf(byte[] contents) {
+        return OutputManifest.sha256(contents).substring(0, 12);
+    }
+
+    /**
+     * Write the atlas, replacing the file only once it has been completely written
+     *
+     * @param path the atlas file
+     * @throws IOException if the file cannot be written
+     */
+    public void write(Path path) throws IOException {
+        Path absolute = path.toAbsolutePath();
+        Path temp = absolute.resolveSibling(absolute.getFileName() + ".tmp");
+
+        Files.write(temp, toBytes());
+        Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the contents of the atlas file
+     */
+    private byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.write(MAGIC);
+            out.writeInt(REFERENCE_SIZE);
+            out.writeUTF(fontName);
+            out.writeFloat(ascent);
+            out.writeFloat(descent);
+            out.writeFloat(leading);
+            out.writeInt(glyphs.size());
+            for (Map.Entry<Character, Glyph> entry : glyphs.entrySet()) {
+                Glyph glyph = entry.getValue();
+                out.writeChar(entry.getKey());
+                out.writeFloat(glyph.advance);
+                out.writeInt(glyph.left);
+                out.writeInt(glyph.top);
+                out.writeInt(glyph.width);
+                out.writeInt(glyph.height);
+                out.write(glyph.pixels);
+            }
+        } catch (IOException e) {
+            // Writing to memory does not fail
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public String toString() {
+        return "GlyphAtlas " + id + " of " + fontName + " (" + glyphs.size() + " glyphs)";
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length > 1) {
+            System.err.println("Usage: GlyphAtlas [atlas file]");
+            System.exit(2);
+        }
+        Path atlasFile = args.length > 0 ? Paths.get(args[0])
+                : new File(CoverImageCache.defaultImagesDir(), DEFAULT_FILE_NAME).toPath();
+
+        GlyphAtlas atlas = build(TextMask.baseFont());
+        atlas.write(atlasFile);
+        System.out.println("Wrote " + atlas + " to " + atlasFile + " (" + Files.size(atlasFile) / 1024 + " KB)");
+    }
+
+    /**
+     * One character, rasterized at the reference size
+     */
+    private static class Glyph {
+        final float advance;
+
+        /** The top left of the glyph's pixels, from the pen position on the baseline */
+        final int left;
+        final int top;
+
+        final int width;
+        final int height;
+
+        /** One bit per pixel, bit (y * width + x) of the array for pixel (x, y) */
+        final byte[] pixels;
+
+        /** The number of covered pixels above and to the left of each pixel, with an extra row and column */
+        private int[] coverage;
+
+        /**
+         * @return the advance at a scale, in whole pixels as Java2D lays out text without fractional metrics
+         */
+        int advance(float scale) {
+            return Math.round(advance * scale);
+        }
+
+        Glyph(float advance, int left, int top, int width, int height, byte[] pixels) {
+            this.advance = advance;
+            this.left = left;
+            this.top = top;
+            this.width = width;
+            this.height = height;
+            this.pixels = pixels != null ? pixels : new byte[(width * height + 7) >>> 3];
+        }
+
+        Glyph withCoverage() {
+            coverage = new int[(width + 1) * (height + 1)];
+            for (int y = 0; y < height; y++) {
+                int rowSum = 0;
+                for (int x = 0; x < width; x++) {
+                    int index = y * width + x;
+                    rowSum += (pixels[index >>> 3] >> (index & 7)) & 1;
+                    coverage[(y + 1) * (width + 1) + x + 1] = coverage[y * (width + 1) + x + 1] + rowSum;
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Set the bit of each mask pixel that is at least half covered by the glyph, scaled and placed with its top
+         * left at (x, y)
+         */
+        void draw(float x, float y, float scale, long[] bits, int maskWidth, int maskHeight) {
+            int fromX = Math.max(0, (int) Math.floor(x));
+            int fromY = Math.max(0, (int) Math.floor(y));
+            int toX = Math.min(maskWidth, (int) Math.ceil(x + width * scale));
+            int toY = Math.min(maskHeight, (int) Math.ceil(y + height * scale));
+
+            for (int maskY = fromY; maskY < toY; maskY++) {
+                // The rows of glyph pixels under the mask pixel, at least one
+                int rawTop = Math.round((maskY - y) / scale);
+                int rawBottom = Math.max(rawTop + 1, Math.round((maskY + 1 - y) / scale));
+                int top = clamp(rawTop, height);
+                int bottom = clamp(rawBottom, height);
+                if (top == bottom) {
+                    continue;
+                }
+
+                for (int maskX = fromX; maskX < toX; maskX++) {
+                    int rawLeft = Math.round((maskX - x) / scale);
+                    int rawRight = Math.max(rawLeft + 1, Math.round((maskX + 1 - x) / scale));
+                    int left = clamp(rawLeft, width);
+                    int right = clamp(rawRight, width);
+                    if (left == right) {
+                        continue;
+                    }
+
+                    // Glyph pixels outside the glyph's rectangle count as uncovered
+                    int covered = coverage[bottom * (width + 1) + right] - coverage[top * (width + 1) + right]
+                            - coverage[bottom * (width + 1) + left] + coverage[top * (width + 1) + left];
+                    if (2 * covered >= (rawRight - rawLeft) * (rawBottom - rawTop)) {
+                        int index = maskY * maskWidth + maskX;
+                        bits[index >>> 6] |= 1L << index;
+                    }
+                }
+            }
+        }
+
+        private static int clamp(int value, int max) {
+            return Math.max(0, Math.min(max, value));
+        }
+    }
+}
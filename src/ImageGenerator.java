@@ -1,14 +1,18 @@
 import javax.imageio.ImageIO;
 import java.awt.*;
-import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.FileNotFoundException;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * A simple steganographic image generator to hide simple codes using various algorithms.
@@ -24,8 +28,23 @@ public class ImageGenerator
     private final BufferedImage img;
     private final String code;
 
+    /** The pixels of each slot covered by the drawn text, which the algorithms hide */
+    private TextMask mask;
+
+    private final SplittableRandom random;
+
+    /** The session whose image and scratch space this generator borrows, or null if it has its own */
+    private final GeneratorSession session;
+
+    /** How hideBinaryData stores its text, and the text, or null for the sentence binaryMessage gives */
+    private PayloadCodec payloadCodec = PayloadCodec.LEGACY;
+    private String payload;
+
     public final static int NUM_ALGORITHMS = 6;
 
+    /** The number of rows of a slot that are filled together, and the most one task fills when rendering in parallel */
+    private final static int BAND_ROWS = 64;
+
     /**
      * A single slot Image generator to hide a specific code. Use one of the included algorithms to encode the image.
      *
@@ -37,6 +56,19 @@ public class ImageGenerator
         this(code, width, height, 1, 1);
     }
 
+    /**
+     * A single slot Image generator to hide a specific code, making its random choices from the given generator. Two
+     * generators given random generators with the same seed produce identical images.
+     *
+     * @param code the code to hide
+     * @param width the width of the image to hide the code in
+     * @param height the height of the image to hide the code in
+     * @param random the source of every random choice this generator makes
+     */
+    public ImageGenerator(String code, int width, int height, SplittableRandom random) {
+        this(code, width, height, 1, 1, random);
+    }
+
     /**
      * An Image generator to hide a specific code in several ways. The generated image will be divided into slots each
      * of which can be used to demonstrate an algorithm to hide the given code. Each slot will have an index
@@ -50,7 +82,42 @@ public class ImageGenerator
      * @param numRows the number of rows of slots to divide the image into
      */
     public ImageGenerator(String code, int width, int height, int numRows, int numCols) {
-        this.img = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        this(code, width, height, numRows, numCols, new SplittableRandom());
+    }
+
+    /**
+     * An Image generator to hide a specific code in several ways, making its random choices from the given
+     * generator. Two generators given random generators with the same seed produce identical images.
+     *
+     * @param code the code to hide
+     * @param width the width of the image to hide the code in
+     * @param height the height of the image to hide the code in
+     * @param numCols the number of columns of slots to divide the image into
+     * @param numRows the number of rows of slots to divide the image into
+     * @param random the source of every random choice this generator makes
+     */
+    public ImageGenerator(String code, int width, int height, int numRows, int numCols, SplittableRandom random) {
+        this(code, new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB), numRows, numCols, random, null);
+    }
+
+    /**
+     * An Image generator that draws into a session's image, which the session has already cleared.
+     *
+     * @param code the code to hide
+     * @param session the session to borrow the image and scratch space of
+     * @param random the source of every random choice this generator makes
+     * @see GeneratorSession#newGenerator(String, SplittableRandom)
+     */
+    ImageGenerator(String code, GeneratorSession session, SplittableRandom random) {
+        this(code, session.image, session.rows, session.cols, random, session);
+    }
+
+    private ImageGenerator(String code, BufferedImage img, int numRows, int numCols, SplittableRandom random,
+                           GeneratorSession session) {
+        this.random = random;
+        this.session = session;
+
+        this.img = img;
 
         this.rows = numRows;
         this.cols = numCols;
@@ -107,27 +174,7 @@ public class ImageGenerator
      * @param pic the picture to hide the code in
      */
     public void hideInRed(int pos, BufferedImage pic) {
-        Rectangle area = getArea(pos);
-
-        pic = getImageToFit(pic);
-
-        for (int row = 0; row < rowHeight; row++) {
-            for (int col = 0; col < colWidth; col++) {
-                Color picColor = new Color(pic.getRGB(col, row));
-
-                Color hideColor = new Color(img.getRGB(col + area.x, row + area.y));
-                int red = picColor.getRed();
-                if (((hideColor.getRed() + hideColor.getGreen()  + hideColor.getBlue()) / 3) > 127) {
-                    red = red | 0b00000001;
-                }
-                else {
-                    red = red & 0b11111110;
-                }
-                picColor = new Color(red, picColor.getGreen(), picColor.getBlue());
-
-                img.setRGB(col + area.x, row + area.y, picColor.getRGB());
-            }
-        }
+        this.hideInChannel(pos, pic, Channel.RED);
     }
 
     /**
@@ -149,27 +196,7 @@ public class ImageGenerator
      * @param pic the picture to hide the code in
      */
     public void hideInGreen(int pos, BufferedImage pic) {
-        Rectangle area = getArea(pos);
-
-        pic = getImageToFit(pic);
-
-        for (int row = 0; row < rowHeight; row++) {
-            for (int col = 0; col < colWidth; col++) {
-                Color picColor = new Color(pic.getRGB(col, row));
-
-                Color hideColor = new Color(img.getRGB(col + area.x, row + area.y));
-                int green = picColor.getGreen();
-                if (((hideColor.getRed() + hideColor.getGreen()  + hideColor.getBlue()) / 3) > 127) {
-                    green = green | 0b00000001;
-                }
-                else {
-                    green = green & 0b11111110;
-                }
-                picColor = new Color(picColor.getRed(), green, picColor.getBlue());
-
-                img.setRGB(col + area.x, row + area.y, picColor.getRGB());
-            }
-        }
+        this.hideInChannel(pos, pic, Channel.GREEN);
     }
 
     /**
@@ -190,27 +217,36 @@ public class ImageGenerator
      * @param pic the picture to hide the code in
      */
     public void hideInBlue(int index, BufferedImage pic) {
-        Rectangle area = getArea(index);
+        this.hideInChannel(index, pic, Channel.BLUE);
+    }
+
+    /**
+     * Hide this ImageGenerator's code in the least significant bit of one color channel of the provided image. The
+     * generated image will look like the one provided in pic.
+     *
+     * @param pos the slot index within which this algorithm will be used
+     * @param pic the picture to hide the code in
+     * @param channel the color channel to hide the code in
+     */
+    public void hideInChannel(int pos, BufferedImage pic, Channel channel) {
+        prepareChannel(pos, pic, channel).render();
+    }
 
-        pic = getImageToFit(pic);
+    private Slot prepareChannel(int pos, BufferedImage pic, Channel channel) {
+        Rectangle area = getArea(pos);
+        TextMask textMask = mask;
 
-        for (int row = 0; row < rowHeight; row++) {
-            for (int col = 0; col < colWidth; col++) {
-                Color picColor = new Color(pic.getRGB(col, row));
+        BufferedImage cover = getImageToFit(pos, pic);
 
-                Color hideColor = new Color(img.getRGB(col + area.x, row + area.y));
-                int blue = picColor.getBlue();
-                if (((hideColor.getRed() + hideColor.getGreen()  + hideColor.getBlue()) / 3) > 127) {
-                    blue = blue | 0b00000001;
-                }
-                else {
-                    blue = blue & 0b11111110;
-                }
-                picColor = new Color(picColor.getRed(), picColor.getGreen(), blue);
+        int[] dst = pixels(img);
+        int dstStart = offset(img, area.x, area.y);
+        int dstScan = scanline(img);
+        int[] src = pixels(cover);
+        int srcStart = offset(cover, 0, 0);
+        int srcScan = scanline(cover);
 
-                img.setRGB(col + area.x, row + area.y, picColor.getRGB());
-            }
-        }
+        return new Slot(area, (rowFrom, rowTo, band) -> embedLsb(textMask.bits, textMask.width, dst, dstStart,
+                dstScan, src, srcStart, srcScan, area.width, rowFrom, rowTo, channel.shift));
     }
 
     /**
@@ -226,22 +262,39 @@ public class ImageGenerator
      * @param index the index of the slot to fill with static.
      */
     public void hideInStatic(int index) {
+        prepareStatic(index).render();
+    }
+
+    private Slot prepareStatic(int index) {
         Rectangle area = getArea(index);
+        TextMask textMask = mask;
 
-        for (int row = 0; row < rowHeight; row++) {
-            for (int col = 0; col < colWidth; col++) {
-                Color hideColor = new Color(img.getRGB(col + area.x, row + area.y));
+        // Each band has its own random stream, so the bands can be filled in any order and still give the same static
+        SplittableRandom[] bandRandoms = new SplittableRandom[Slot.bands(area.height)];
+        for (int band = 0; band < bandRandoms.length; band++) {
+            bandRandoms[band] = random.split();
+        }
 
-                int[] levels = random(3, 255);
-                if (((hideColor.getRed() + hideColor.getGreen() + hideColor.getBlue()) / 3) > 127) {
-                    levels[1] = levels[0];
-                }
-                shuffle(levels);
-                Color picColor = new Color(levels[0], levels[1], levels[2]);
+        int[] pixels = pixels(img);
+        int scan = scanline(img);
+        int start = offset(img, area.x, area.y);
+
+        return new Slot(area, (rowFrom, rowTo, band) -> {
+            SplittableRandom bandRandom = bandRandoms[band];
+            int[] levels = new int[3];
+            for (int row = rowFrom; row < rowTo; row++) {
+                int p = start + row * scan;
+                for (int col = 0; col < area.width; col++, p++) {
+                    randomLevels(bandRandom, levels, 255);
+                    if (textMask.isText(col, row)) {
+                        levels[1] = levels[0];
+                    }
+                    shuffle(bandRandom, levels);
 
-                img.setRGB(col + area.x, row + area.y, picColor.getRGB());
+                    pixels[p] = 0xff000000 | (levels[0] << 16) | (levels[1] << 8) | levels[2];
+                }
             }
-        }
+        });
     }
 
     /**
@@ -258,34 +311,66 @@ public class ImageGenerator
      */
 
     public void hideGradientColor(int index) {
-        Rectangle area = getArea(index);
-
-        Color[][] gradient = new Color[area.width][area.height];
+        prepareGradientColor(index).render();
+    }
 
-        for (int row = 0; row < rowHeight; row++) {
-            for (int col = 0; col < colWidth; col++) {
-                Color hideColor = new Color(img.getRGB(col + area.x, row + area.y));
+    private Slot prepareGradientColor(int index) {
+        Rectangle area = getArea(index);
+        TextMask textMask = mask;
 
-                if (((hideColor.getRed() + hideColor.getGreen()  + hideColor.getBlue()) / 3) < 127) {
-                    gradient[col][row] = new Color(0, 0, col);
-                }
-                else {
-                    gradient[col][row] = Color.BLACK;
+        // Shuffle the columns by shuffling their indexes, column i of the slot shows column columns[i] of the gradient
+        int[] columns = session != null ? session.columns(index, area.width) : new int[area.width];
+        for (int col = 0; col < columns.length; col++) {
+            columns[col] = col;
+        }
+        shuffle(random, columns);
+
+        int[] pixels = pixels(img);
+        int scan = scanline(img);
+        int start = offset(img, area.x, area.y);
+
+        return new Slot(area, (rowFrom, rowTo, band) -> {
+            for (int row = rowFrom; row < rowTo; row++) {
+                int p = start + row * scan;
+                for (int col = 0; col < area.width; col++, p++) {
+                    int source = columns[col];
+                    pixels[p] = textMask.isText(source, row)
+                            ? 0xff000000
+                            : 0xff000000 | gradientBlue(source, area.width);
                 }
             }
-        }
+        });
+    }
 
-        shuffle(gradient);
+    /**
+     * The blue level of a column of the gradient. Each column is one level brighter than the last, unless the slot is
+     * too wide for that, in which case the gradient is spread evenly over the 256 levels.
+     */
+    static int gradientBlue(int col, int width) {
+        return width <= 256 ? col : (int) ((long) col * 256 / width);
+    }
 
-        for (int row = 0; row < rowHeight; row++) {
-            for (int col = 0; col < colWidth; col++) {
-                img.setRGB(col + area.x, row + area.y, gradient[col][row].getRGB());
-            }
-        }
+    /**
+     * Choose how hideBinaryData stores its text. The legacy format is used unless another is chosen.
+     *
+     * @param codec the format to store the text in
+     */
+    public void setPayloadCodec(PayloadCodec codec) {
+        this.payloadCodec = codec;
+    }
+
+    /**
+     * Choose the text hideBinaryData stores, such as a hint or a signed token, in place of the sentence giving the
+     * code
+     *
+     * @param text the text to store, or null for the sentence
+     */
+    public void setPayload(String text) {
+        this.payload = text;
     }
 
     /**
-     * Hide the code as binary data in the red channel of the given picture.
+     * Hide the code as binary data in the low bits of the given picture, in the format chosen by setPayloadCodec.
      *
      * @param pic the picture that the code will be hidden in.
      */
@@ -294,80 +379,84 @@ public class ImageGenerator
     }
 
     /**
-     * Hide the code as binary data in the red channel of the given picture.
+     * Hide the code as binary data in the low bits of the given picture, in the format chosen by setPayloadCodec.
      *
      * @param index the slot to hide the code within
      * @param pic the picture that the code will be hidden in.
      */
     public void hideBinaryData(int index, BufferedImage pic) {
-        Rectangle area = getArea(index);
-
-        pic = getImageToFit(pic);
-
-        String data = "The code for your lock is " + code + ".";
-
-        char[] chars = data.toCharArray();
-
-        int charIndex = 0;
-        int bitIndex = 0;
+        prepareBinaryData(index, pic).render();
+    }
 
-        for (int row = 0; row < rowHeight; row++) {
-            for (int col = 0; col < colWidth; col++) {
-                Color picColor = new Color(pic.getRGB(col, row));
+    private Slot prepareBinaryData(int index, BufferedImage pic) {
+        Rectangle area = getArea(index);
 
-                int bit = 0;
-                if (charIndex < chars.length) {
-                    bit = (chars[charIndex] >> (7 - bitIndex)) & 0b00000001;
+        BufferedImage cover = getImageToFit(index, pic);
+
+        // The text is packed into bits up front, so the pixel loop only copies bits into the pixels that hold them
+        PayloadCodec.Payload message = payloadCodec.pack(payload != null ? payload : binaryMessage(code),
+                area.width * area.height);
+
+        int[] dst = pixels(img);
+        int dstStart = offset(img, area.x, area.y);
+        int dstScan = scanline(img);
+        int[] src = pixels(cover);
+        int srcStart = offset(cover, 0, 0);
+        int srcScan = scanline(cover);
+
+        return new Slot(area, (rowFrom, rowTo, band) -> {
+            for (int row = rowFrom; row < rowTo; row++) {
+                int p = dstStart + row * dstScan;
+                int s = srcStart + row * srcScan;
+                for (int col = 0; col < area.width; col++) {
+                    dst[p + col] = 0xff000000 | src[s + col];
                 }
 
-                int red = (picColor.getRed() & 0b11111110) | bit;
-
-                bitIndex++;
-                if (bitIndex == 8) {
-                    bitIndex = 0;
-                    charIndex++;
+                int pixel = row * area.width;
+                if (pixel < message.pixelCount) {
+                    message.write(dst, p, pixel, Math.min(area.width, message.pixelCount - pixel));
                 }
-
-                picColor = new Color(red, picColor.getGreen(), picColor.getBlue());
-
-                img.setRGB(col + area.x, row + area.y, picColor.getRGB());
             }
-        }
+        });
     }
 
     /**
-     * Draw the given text over each slot in the generated image
+     * @param code the code to hide
+     * @return the sentence that hideBinaryData hides for the code, unless it is given other text
+     */
+    static String binaryMessage(String code) {
+        return "The code for your lock is " + code + ".";
+    }
+
+    /**
+     * Draw the given text over each slot in the generated image. The algorithms hide every piece of text drawn.
      * @param text the text to draw in each slot
      */
     public void drawText(String text) {
-        Graphics g = img.getGraphics();
-
-        // Shrink the text until it fits in the space available
-        float div = 1.0F;
-        Rectangle2D rect;
-        do {
-            Font font = g.getFont().deriveFont(rowHeight / div);
-            g.setFont(font);
-
-            FontMetrics metrics = g.getFontMetrics();
-            rect = metrics.getStringBounds(text, g);
-            div++;
-        } while (rect.getHeight() > rowHeight || rect.getWidth() > colWidth);
+        long drawStart = Metrics.start();
 
-        // Calculate the offsets to center the text in each space
-        int offsetX = (colWidth / 2) - (int)(rect.getWidth() / 2);
-        int offsetY =  (rowHeight / 2) + (int)(rect.getHeight() / 2);
+        TextMask textMask = TextMask.of(text, colWidth, rowHeight);
+        mask = (mask == null) ? textMask : TextMask.union(mask, textMask);
 
-        // Draw the text in each space
+        // Copy the text into each space, in the same color that Graphics.drawString uses by default
+        int[] pixels = pixels(img);
+        int scan = scanline(img);
         for (int row = 0; row < rows; row++) {
             for (int col = 0; col < cols; col++) {
-                int x = (col * colWidth) + offsetX;
-                int y = (row * rowHeight) + offsetY;
-                g.drawString(text, x, y);
+                int start = offset(img, col * colWidth, row * rowHeight);
+                for (int y = 0; y < rowHeight; y++) {
+                    int index = y * colWidth;
+                    int p = start + y * scan;
+                    for (int x = 0; x < colWidth; x++, index++, p++) {
+                        if (textMask.bit(index) != 0) {
+                            pixels[p] = 0xffffffff;
+                        }
+                    }
+                }
             }
         }
 
-        g.dispose();
+        Metrics.end(Metrics.Stage.DRAW_TEXT, drawStart);
     }
 
     /**
@@ -376,7 +465,63 @@ public class ImageGenerator
      * @throws IOException if the file could not be saved
      */
     public void saveImage(String filename) throws IOException {
-        ImageIO.write(img, "png", new File(filename));
+        saveImage(filename, PngEncoder.DEFAULT);
+    }
+
+    /**
+     * Save the generated image as filename, in png format, with the given encoder settings.
+     * @param filename the file to save as
+     * @param encoder the png encoder to use
+     * @throws IOException if the file could not be saved
+     */
+    public void saveImage(String filename, PngEncoder encoder) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(filename))) {
+            writeImage(out, encoder);
+        }
+    }
+
+    /**
+     * Write the generated image to a stream in png format, with the given encoder settings.
+     * @param out the stream to write to, which is left open
+     * @param encoder the png encoder to use
+     * @throws IOException if the image could not be written
+     */
+    public void writeImage(OutputStream out, PngEncoder encoder) throws IOException {
+        encoder.write(img, out);
+    }
+
+    /**
+     * Replace the least significant bit of one channel of each source pixel with the pixel's bit, one per pixel with
+     * bitsWidth bits to a row, storing the opaque result in the destination.
+     */
+    private static void embedLsb(long[] bits, int bitsWidth, int[] dst, int dstIndex, int dstScan, int[] src,
+                                 int srcIndex, int srcScan, int width, int rowFrom, int rowTo, int shift) {
+        for (int row = rowFrom; row < rowTo; row++) {
+            PixelKernels.ACTIVE.embedLsb(bits, row * bitsWidth, dst, dstIndex + row * dstScan, src,
+                    srcIndex + row * srcScan, width, shift);
+        }
+    }
+
+    /**
+     * Get the array backing an image's pixels. The image must use one int per pixel, as the TYPE_INT_ARGB images
+     * made by this class do.
+     */
+    private static int[] pixels(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    private static int scanline(BufferedImage image) {
+        return ((SinglePixelPackedSampleModel) image.getSampleModel()).getScanlineStride();
+    }
+
+    /**
+     * Get the index of pixel (x, y) in the array returned by pixels(image), allowing for sub-images
+     */
+    private static int offset(BufferedImage image, int x, int y) {
+        WritableRaster raster = image.getRaster();
+        return raster.getDataBuffer().getOffset()
+                + (y - raster.getSampleModelTranslateY()) * scanline(image)
+                + (x - raster.getSampleModelTranslateX());
     }
 
     private int getRow(int pos) {
@@ -394,137 +539,361 @@ public class ImageGenerator
         return new Rectangle(col * this.colWidth, row * this.rowHeight, colWidth, rowHeight);
     }
 
-    private BufferedImage getImageToFit(BufferedImage img) {
-        BufferedImage scaled = new BufferedImage(colWidth, rowHeight, BufferedImage.TYPE_INT_ARGB);
+    private BufferedImage getImageToFit(int pos, BufferedImage img) {
+        // Covers from the CoverImageCache have already been scaled to fit
+        if (img.getWidth() == colWidth && img.getHeight() == rowHeight
+                && img.getType() == BufferedImage.TYPE_INT_ARGB) {
+            return img;
+        }
+
+        if (session != null) {
+            return scaleToFit(img, session.scaled(pos, colWidth, rowHeight));
+        }
+        return scaleToFit(img, colWidth, rowHeight);
+    }
+
+    /**
+     * Crop the center of an image to the aspect ratio of the given size and scale it to exactly that size.
+     *
+     * @param img the image to scale
+     * @param width the width of the scaled image
+     * @param height the height of the scaled image
+     * @return a new image of the given size
+     */
+    static BufferedImage scaleToFit(BufferedImage img, int width, int height) {
+        return scaleToFit(img, new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB));
+    }
+
+    /**
+     * Crop the center of an image to the aspect ratio of another image and scale it into that image, replacing
+     * whatever it held.
+     *
+     * @param img the image to scale
+     * @param scaled the TYPE_INT_ARGB image to scale it into
+     * @return scaled
+     */
+    static BufferedImage scaleToFit(BufferedImage img, BufferedImage scaled) {
+        long start = Metrics.start();
+
+        int width = scaled.getWidth();
+        int height = scaled.getHeight();
+        Arrays.fill(pixels(scaled), 0);
 
         Graphics g = scaled.getGraphics();
 
-        double areaRatio = ((double)colWidth)/rowHeight;
-        double imageRatio = ((double)img.getWidth())/img.getHeight();
+        java.awt.Rectangle slice = sliceToFit(img.getWidth(), img.getHeight(), width, height);
+        g.drawImage(img, 0, 0, width, height,
+                slice.x, slice.y, slice.x + slice.width, slice.y + slice.height, null);
+
+        g.dispose();
+
+        Metrics.end(Metrics.Stage.SCALE, start);
+        return scaled;
+    }
+
+    /**
+     * Find the largest centered part of an image with the same aspect ratio as the given size.
+     *
+     * @param imageWidth the width of the image
+     * @param imageHeight the height of the image
+     * @param width the width of the area the image will fill
+     * @param height the height of the area the image will fill
+     * @return the part of the image that scaleToFit keeps
+     */
+    static java.awt.Rectangle sliceToFit(int imageWidth, int imageHeight, int width, int height) {
+        double areaRatio = ((double)width)/height;
+        double imageRatio = ((double)imageWidth)/imageHeight;
 
         int sliceWidth;
         int sliceHeight;
         if (areaRatio > imageRatio) {
-            sliceWidth = img.getWidth();
+            sliceWidth = imageWidth;
             sliceHeight = (int)(sliceWidth / areaRatio);
         }
         else {
-            sliceHeight = img.getHeight();
+            sliceHeight = imageHeight;
             sliceWidth = (int)(sliceHeight * areaRatio);
         }
 
-        int sliceTop = (img.getHeight() - sliceHeight) / 2;
-        int sliceLeft = (img.getWidth() - sliceWidth) / 2;
-        g.drawImage(img, 0, 0, colWidth, rowHeight,
-                sliceLeft, sliceTop, sliceLeft + sliceWidth, sliceTop + sliceHeight, null);
+        int sliceTop = (imageHeight - sliceHeight) / 2;
+        int sliceLeft = (imageWidth - sliceWidth) / 2;
+        return new java.awt.Rectangle(sliceLeft, sliceTop, sliceWidth, sliceHeight);
+    }
 
-        g.dispose();
+    /**
+     * Hide the code in the whole image using one of the algorithms, numbered [0..NUM_ALGORITHMS). Algorithms that
+     * need a picture use a random cover from the images directory.
+     *
+     * @param num the algorithm to use
+     * @throws IOException if a cover image cannot be loaded
+     */
+    public void doAlgorithm(int num) throws IOException {
+        this.doAlgorithm(0, num);
+    }
 
-        return scaled;
+    /**
+     * Hide the code in one slot using one of the algorithms, numbered [0..NUM_ALGORITHMS). Algorithms that need a
+     * picture use a random cover from the images directory.
+     *
+     * @param pos the slot index within which the algorithm will be used
+     * @param num the algorithm to use
+     * @throws IOException if a cover image cannot be loaded
+     */
+    public void doAlgorithm(int pos, int num) throws IOException {
+        this.doAlgorithm(pos, num, null);
     }
 
-    public void doAlgorithm(int num) {
-        try {
-            switch (num) {
-                case 0:
-                    this.hideInRed(randomImage());
-                    break;
-                case 1:
-                    this.hideInGreen(randomImage());
-                    break;
-                case 2:
-                    this.hideInBlue(randomImage());
-                    break;
-                case 3:
-                    this.hideInStatic();
-                    break;
-                case 4:
-                    this.hideGradientColor();
-                    break;
-                case 5:
-                    this.hideBinaryData(randomImage());
-                    break;
-                default:
-                    throw new RuntimeException("Invalid algorithm number " + num + " must be 0.." + NUM_ALGORITHMS);
-            }
-        }
-        catch (IOException e) {
-            System.err.println(e.getMessage());
-            System.exit(1);
-        }
+    /**
+     * Hide the code in one slot using one of the algorithms, numbered [0..NUM_ALGORITHMS), with a chosen cover for
+     * the algorithms that need a picture.
+     *
+     * @param pos the slot index within which the algorithm will be used
+     * @param num the algorithm to use
+     * @param cover the picture to hide the code in, or null to use a random cover from the images directory
+     * @throws IOException if a cover image cannot be loaded
+     * @see #usesCover(int)
+     */
+    public void doAlgorithm(int pos, int num, BufferedImage cover) throws IOException {
+        long start = Metrics.start();
+        prepare(pos, num, cover).render();
+        Metrics.end(Metrics.Stage.algorithm(num), start);
+    }
 
+    /**
+     * @param num an algorithm number
+     * @return true if the algorithm hides the code in a picture
+     */
+    public static boolean usesCover(int num) {
+        return num == 0 || num == 1 || num == 2 || num == 5;
     }
+
     /**
-     * Get a random image from the images directory
+     * @param num an algorithm number
+     * @return true if the algorithm stores text in the format chosen by setPayloadCodec
+     */
+    public static boolean usesPayload(int num) {
+        return num == 5;
+    }
+
+    /**
+     * Hide the code in many slots at once, using algorithm algorithms[i] in slot i, on the common fork/join pool.
      *
-     * @return the random image from the images directory
-     * @throws IOException if the image cannot be loaded
+     * @param algorithms the algorithm for each slot, for as many slots as there are algorithms
+     * @throws IOException if a cover image cannot be loaded
+     * @see #doAlgorithms(int[], ForkJoinPool)
      */
-    public static BufferedImage randomImage() throws IOException {
-        Path thisPath = Paths.get("");
+    public void doAlgorithms(int[] algorithms) throws IOException {
+        this.doAlgorithms(algorithms, ForkJoinPool.commonPool());
+    }
 
-        String originalDir = thisPath.toAbsolutePath().toString();
-        if (!originalDir.endsWith(File.separator)) {
-            originalDir += File.separator;
+    /**
+     * Hide the code in many slots at once, using algorithm algorithms[i] in slot i. Every random choice is made first,
+     * one slot at a time, and then the slots are filled in bands of rows on the given pool. The image is exactly the
+     * one that calling doAlgorithm(i, algorithms[i]) for each slot in order would make.
+     *
+     * The slots do not overlap, so each band writes its own pixels of the image without locking. The image can be
+     * used again once this returns.
+     *
+     * @param algorithms the algorithm for each slot, for as many slots as there are algorithms
+     * @param pool the pool to fill the slots on
+     * @throws IOException if a cover image cannot be loaded
+     */
+    public void doAlgorithms(int[] algorithms, ForkJoinPool pool) throws IOException {
+        if (algorithms.length > rows * cols) {
+            throw new IllegalArgumentException(algorithms.length + " algorithms given for " + (rows * cols) + " slots");
         }
-        String imagePath = originalDir + "images" + File.separator;
-        try {
-            imagePath = URLDecoder.decode(imagePath, "UTF-8");
-        } catch (UnsupportedEncodingException ignored) {        }
 
-        File imagesDir = new File(imagePath);
+        Slot[] slots = new Slot[algorithms.length];
+        int bands = 0;
+        for (int pos = 0; pos < slots.length; pos++) {
+            slots[pos] = prepare(pos, algorithms[pos], null);
+            bands += slots[pos].bands();
+        }
 
-        if (!imagesDir.exists()) {
-            throw new FileNotFoundException("image folder not found");
+        if (bands == 0) {
+            return;
         }
 
-        File[] images = imagesDir.listFiles((file, name)-> {
-            name = name.toLowerCase();
-            return name.endsWith(".png") || name.endsWith(".jpg");
-        });
+        int[] bandSlots = new int[bands];
+        int[] bandNumbers = new int[bands];
+        for (int pos = 0, i = 0; pos < slots.length; pos++) {
+            for (int band = 0; band < slots[pos].bands(); band++, i++) {
+                bandSlots[i] = pos;
+                bandNumbers[i] = band;
+            }
+        }
 
-        assert images != null;
-        int num = (int)(Math.random() * images.length);
+        pool.invoke(new RenderBands(slots, bandSlots, bandNumbers, 0, bands));
+    }
 
-        return ImageIO.read(images[num]);
+    /**
+     * Make every random choice one of the algorithms needs to fill a slot, choosing a random cover if none is given
+     */
+    private Slot prepare(int pos, int num, BufferedImage cover) throws IOException {
+        if (cover == null && usesCover(num)) {
+            cover = randomCover();
+        }
+
+        switch (num) {
+            case 0:
+                return this.prepareChannel(pos, cover, Channel.RED);
+            case 1:
+                return this.prepareChannel(pos, cover, Channel.GREEN);
+            case 2:
+                return this.prepareChannel(pos, cover, Channel.BLUE);
+            case 3:
+                return this.prepareStatic(pos);
+            case 4:
+                return this.prepareGradientColor(pos);
+            case 5:
+                return this.prepareBinaryData(pos, cover);
+            default:
+                throw new IllegalArgumentException("Invalid algorithm number " + num + " must be 0.." + (NUM_ALGORITHMS - 1));
+        }
     }
 
-    private static void shuffle(int[] arr) {
+    /**
+     * Get a random image from the images directory
+     *
+     * @return the random image from the images directory
+     * @throws IOException if the image cannot be loaded
+     */
+    public static BufferedImage randomImage() throws IOException {
+        return ImageIO.read(CoverImageCache.getShared().randomImageFile(ThreadLocalRandom.current()));
+    }
+
+    /**
+     * Get a random image from the images directory, already cropped and scaled to fit a slot of this image
+     *
+     * @return the scaled random image, shared through the CoverImageCache
+     * @throws IOException if the image cannot be loaded
+     */
+    private BufferedImage randomCover() throws IOException {
+        return CoverImageCache.getShared().randomCover(random, colWidth, rowHeight);
+    }
+
+    private static void shuffle(SplittableRandom random, int[] arr) {
         for (int i = 0; i < arr.length; i++) {
-            int pos = (int)(Math.random() * arr.length);
+            int pos = random.nextInt(arr.length);
             int tmp = arr[i];
             arr[i] = arr[pos];
             arr[pos] = tmp;
         }
     }
-    private static void shuffle(Color[][] arr) {
-        for (int i = 0; i < arr.length; i++) {
-            int pos = (int)(Math.random() * arr.length);
-            Color[] tmp = arr[i];
-            arr[i] = arr[pos];
-            arr[pos] = tmp;
+    /**
+     * Fill levels with three distinct random values in [0..max)
+     */
+    private static void randomLevels(SplittableRandom random, int[] levels, int max) {
+        int a = random.nextInt(max);
+        int b = random.nextInt(max - 1);
+        int c = random.nextInt(max - 2);
+
+        // Step over the values already chosen instead of drawing again until they differ.
+        // (x - v - 1) >>> 31 is 1 when v >= x and 0 otherwise.
+        b += (a - b - 1) >>> 31;
+
+        int low = Math.min(a, b);
+        int high = Math.max(a, b);
+        c += (low - c - 1) >>> 31;
+        c += (high - c - 1) >>> 31;
+
+        levels[0] = a;
+        levels[1] = b;
+        levels[2] = c;
+    }
+
+    /**
+     * Fills some rows of a slot
+     */
+    private interface BandFiller {
+        /**
+         * @param rowFrom the first row of the slot to fill
+         * @param rowTo the row after the last row to fill
+         * @param band the band the rows make up, rowFrom / BAND_ROWS
+         */
+        void fill(int rowFrom, int rowTo, int band);
+    }
+
+    /**
+     * An algorithm ready to fill one slot. Its random choices have all been made, so its bands can be filled in any
+     * order, on any thread, giving the same pixels.
+     */
+    private static class Slot {
+        final Rectangle area;
+        final BandFiller filler;
+
+        Slot(Rectangle area, BandFiller filler) {
+            this.area = area;
+            this.filler = filler;
+        }
+
+        static int bands(int height) {
+            return (height + BAND_ROWS - 1) / BAND_ROWS;
+        }
+
+        int bands() {
+            return bands(area.height);
+        }
+
+        void render(int band) {
+            int rowFrom = band * BAND_ROWS;
+            filler.fill(rowFrom, Math.min(area.height, rowFrom + BAND_ROWS), band);
+        }
+
+        void render() {
+            for (int band = 0; band < bands(); band++) {
+                render(band);
+            }
         }
     }
 
-    private static int[] random(int size, int max) {
-        int[] arr = new int[size];
+    /**
+     * Fills a range of the bands of some slots, splitting the range in half until each task has a single band. Tasks
+     * are never serialized.
+     */
+    @SuppressWarnings("serial")
+    private static class RenderBands extends RecursiveAction {
+        private final Slot[] slots;
+        private final int[] bandSlots;
+        private final int[] bandNumbers;
+        private final int from;
+        private final int to;
+
+        RenderBands(Slot[] slots, int[] bandSlots, int[] bandNumbers, int from, int to) {
+            this.slots = slots;
+            this.bandSlots = bandSlots;
+            this.bandNumbers = bandNumbers;
+            this.from = from;
+            this.to = to;
+        }
 
-        for (int i = 0; i < arr.length; i++) {
-            boolean same = true;
-            while (same) {
-                arr[i] = (int) (Math.random() * max);
-
-                same = false;
-                for (int j = i - 1; j >= 0; j--) {
-                    if (arr[j] == arr[i]) {
-                        same = true;
-                        break;
-                    }
-                }
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                slots[bandSlots[from]].render(bandNumbers[from]);
+                return;
             }
+
+            int middle = (from + to) >>> 1;
+            invokeAll(new RenderBands(slots, bandSlots, bandNumbers, from, middle),
+                    new RenderBands(slots, bandSlots, bandNumbers, middle, to));
         }
+    }
+
+    /**
+     * The color channels that a code can be hidden in
+     */
+    public enum Channel {
+        RED(16),
+        GREEN(8),
+        BLUE(0);
 
-        return arr;
+        /** The position of the channel's bits within an ARGB pixel */
+        final int shift;
+
+        Channel(int shift) {
+            this.shift = shift;
+        }
     }
 
     private static class Rectangle {
@@ -0,0 +1,29 @@
+/**
+ * One lock of a lock file: its name and the code it opens with
+ */
+class Lock
+{
+    final String name;
+    final String code;
+
+    /** The line of the lock file the lock was read from, or 0 if it was not read from a file */
+    final int line;
+
+    public Lock(String name, String code) {
+        this(name, code, 0);
+    }
+
+    public Lock(String name, String code, int line) {
+        this.name = name;
+        this.code = code;
+        this.line = line;
+    }
+
+    /**
+     * @return the lock's name, followed by the line it was read from, for messages about the lock
+     */
+    @Override
+    public String toString() {
+        return line > 0 ? name + " (line " + line + ")" : name;
+    }
+}
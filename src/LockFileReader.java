@@ -0,0 +1,88 @@
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the locks in a lock file one row at a time, so that locks can be generated while the rest of the file is
+ * still being read. A lock file has a header row followed by one lock per row, each row holding the lock's name and
+ * code separated by a tab. Rows may end in either LF or CRLF.
+ *
+ * Blank rows are skipped. Rows without a name and a code are skipped and recorded as problems, along with their line
+ * numbers. So are rows repeating the name of an earlier lock, since a lock's name identifies its image and its entry
+ * in the manifest; only the first row with a name is read.
+ */
+public class LockFileReader implements Closeable
+{
+    private final BufferedReader reader;
+    private final List<String> problems = new ArrayList<>();
+    private final Map<String, Integer> nameLines = new HashMap<>();
+    private int lineNumber;
+
+    /**
+     * Open a lock file and skip its header row
+     *
+     * @param path the lock file to read
+     * @throws IOException if the file cannot be opened
+     */
+    public LockFileReader(Path path) throws IOException {
+        this.reader = Files.newBufferedReader(path);
+
+        if (reader.readLine() != null) {
+            lineNumber++;
+        }
+    }
+
+    /**
+     * Read the next well formed lock from the file
+     *
+     * @return the next lock, or null at the end of the file
+     * @throws IOException if the file cannot be read
+     */
+    public Lock next() throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+
+            if (line.isBlank()) {
+                continue;
+            }
+
+            String[] lineParts = line.split("\t");
+            if (lineParts.length < 2 || lineParts[0].isEmpty() || lineParts[1].isEmpty()) {
+                problems.add("line " + lineNumber + ": expected a name and a code separated by a tab but found \""
+                        + line + "\"");
+                continue;
+            }
+
+            Integer firstLine = nameLines.putIfAbsent(lineParts[0], lineNumber);
+            if (firstLine != null) {
+                problems.add("line " + lineNumber + ": lock " + lineParts[0] + " is already listed on line "
+                        + firstLine + ", only line " + firstLine + " is used");
+                continue;
+            }
+
+            return new Lock(lineParts[0], lineParts[1], lineNumber);
+        }
+
+        return null;
+    }
+
+    /**
+     * @return a description of each malformed or repeated row read so far
+     */
+    public List<String> getProblems() {
+        return Collections.unmodifiableList(problems);
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,540 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Checks a directory of generated lock images against the lock file they were generated from. Each image is decoded
+ * by undoing every ImageGenerator algorithm:
+ *
+ * - red, green and blue: the least significant bit plane of the channel
+ * - static: the pixels where two channels are equal
+ * - gradient: the black pixels, once the columns are put back in place by the blue level of the gradient behind them
+ * - binary: the sentence stored in the low bits of the picture, in any format PayloadCodec reads
+ *
+ * When the images' directory has a manifest, each image must be in it, and the recovered text is compared only with
+ * the text of the lock the manifest records for the image, undoing only the algorithm it records. Its text is drawn
+ * by the renderer the manifest records, since the glyph atlas and Java2D differ by a few pixels. Without a manifest
+ * the recovered text is compared with the text each lock in the image's group would have drawn, and an image passes
+ * when exactly one lock matches it. The text is rendered with the same fonts the images were generated with, so
+ * images should be verified on a machine with the same fonts.
+ *
+ * Images are named after their group, so only the locks of that group are compared with an image, and an image
+ * named after no group fails. Across the directory, a lock matched by more than one image fails, as do two images of
+ * one group hidden by the same algorithm.
+ */
+public class LockVerifier
+{
+    /** The names of the algorithms, indexed by algorithm number */
+    public final static String[] ALGORITHM_NAMES = {"red", "green", "blue", "static", "gradient", "binary"};
+
+    /** The fraction of an image's pixels allowed to disagree with the expected text */
+    private final static double TOLERANCE = 0.005;
+
+    private final static int GRADIENT = 4;
+    private final static int BINARY = 5;
+
+    private final Map<String, Lock> byName = new HashMap<>();
+    private final Map<String, List<Lock>> groups = new HashMap<>();
+
+    /**
+     * The manifest entry of each image by file name, for each directory verified so far, or null for a directory
+     * without a manifest
+     */
+    private final Map<Path, Map<String, OutputManifest.Entry>> manifests = new HashMap<>();
+
+    /**
+     * A verifier for images generated from the given locks
+     *
+     * @param locks the locks the images should hide
+     */
+    public LockVerifier(Collection<Lock> locks) {
+        for (Lock lock : locks) {
+            byName.put(lock.name, lock);
+            groups.computeIfAbsent(lock.name.substring(0, 1), name -> new ArrayList<>()).add(lock);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path lockFile = Paths.get("Lockout.txt");
+        Path dir = Paths.get("");
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--threads") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            }
+            else {
+                paths.add(args[i]);
+            }
+        }
+        if (paths.size() > 2) {
+            System.err.println("Usage: LockVerifier [--threads n] [lockfile] [image dir]");
+            System.exit(2);
+        }
+        if (paths.size() > 0) {
+            lockFile = Paths.get(paths.get(0));
+        }
+        if (paths.size() > 1) {
+            dir = Paths.get(paths.get(1));
+        }
+
+        List<Lock> locks = new ArrayList<>();
+        try (LockFileReader reader = new LockFileReader(lockFile)) {
+            Lock lock;
+            while ((lock = reader.next()) != null) {
+                locks.add(lock);
+            }
+            for (String problem : reader.getProblems()) {
+                System.err.println(problem);
+            }
+        }
+
+        long start = System.nanoTime();
+        List<Result> results = new LockVerifier(locks).verifyAll(dir, threads);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        int failed = 0;
+        Map<Lock, List<Result>> matched = new IdentityHashMap<>();
+        for (Result result : results) {
+            System.out.println(result);
+            if (result.passed()) {
+                matched.computeIfAbsent(result.lock, lock -> new ArrayList<>()).add(result);
+            }
+            else {
+                failed++;
+            }
+        }
+
+        int missing = 0;
+        int conflicts = 0;
+        for (Lock lock : locks) {
+            List<Result> images = matched.get(lock);
+            if (images == null) {
+                System.out.println("MISSING " + lock + " has no image");
+                missing++;
+            }
+            else if (images.size() > 1) {
+                System.out.println("FAIL " + lock + " matches " + images.size() + " images: " + fileNames(images));
+                conflicts++;
+            }
+        }
+
+        // Each lock of a group is generated with a different algorithm
+        Map<String, List<Result>> byAlgorithm = new TreeMap<>();
+        for (List<Result> images : matched.values()) {
+            for (Result result : images) {
+                byAlgorithm.computeIfAbsent(groupOf(result.file) + "\t" + ALGORITHM_NAMES[result.algorithm],
+                        key -> new ArrayList<>()).add(result);
+            }
+        }
+        for (Map.Entry<String, List<Result>> entry : byAlgorithm.entrySet()) {
+            if (entry.getValue().size() > 1) {
+                String[] key = entry.getKey().split("\t");
+                System.out.println("FAIL group " + key[0] + " hides " + entry.getValue().size() + " images by "
+                        + key[1] + ": " + fileNames(entry.getValue()));
+                conflicts++;
+            }
+        }
+
+        System.out.printf("%d images checked in %.2fs, %d passed, %d failed, %d locks missing, %d conflicts%n",
+                results.size(), seconds, results.size() - failed, failed, missing, conflicts);
+        if (failed > 0 || missing > 0 || conflicts > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static String fileNames(List<Result> results) {
+        return results.stream().map(r -> r.file.getFileName().toString()).sorted().collect(Collectors.joining(", "));
+    }
+
+    /**
+     * Verify every png in a directory
+     *
+     * @param dir the directory of images
+     * @param threads the number of images to verify at once
+     * @return the result for each image, in file name order
+     * @throws IOException if the directory cannot be listed
+     */
+    public List<Result> verifyAll(Path dir, int threads) throws IOException {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(dir)) {
+            files = list.filter(path -> path.getFileName().toString().toLowerCase().endsWith(".png"))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (Path file : files) {
+                futures.add(workers.submit(() -> verify(file)));
+            }
+
+            List<Result> results = new ArrayList<>();
+            for (int i = 0; i < files.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    results.add(new Result(files.get(i), null, -1, 0, e.getCause().toString()));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while verifying images", e);
+                }
+            }
+            return results;
+        }
+        finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Find which lock an image hides, and how
+     *
+     * @param file the image to check
+     * @return the best matching lock and algorithm, and whether it is a clear match
+     * @throws IOException if the image cannot be read
+     */
+    public Result verify(Path file) throws IOException {
+        BufferedImage img;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 64 * 1024)) {
+            img = ImageIO.read(in);
+        }
+        if (img == null) {
+            return new Result(file, null, -1, 0, "not an image");
+        }
+
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int[] argb = img.getRGB(0, 0, width, height, null, 0, width);
+
+        long[][] recovered = recover(argb, width, height);
+        GradientColumns gradient = new GradientColumns(argb, width, height);
+        byte[] message = PayloadCodec.read(argb);
+
+        List<Lock> candidates = groups.get(groupOf(file));
+        if (candidates == null) {
+            return new Result(file, null, -1, 0, "no locks in group " + groupOf(file));
+        }
+
+        Map<String, OutputManifest.Entry> manifest = manifestIn(file.toAbsolutePath().getParent());
+        if (manifest != null) {
+            OutputManifest.Entry entry = manifest.get(file.getFileName().toString());
+            if (entry == null) {
+                return new Result(file, null, -1, 0, "not in " + OutputManifest.FILE_NAME);
+            }
+            Lock lock = byName.get(entry.lockName);
+            if (lock == null || !candidates.contains(lock)) {
+                return new Result(file, null, -1, 0, "recorded as " + entry.lockName + ", which is not a lock of group "
+                        + groupOf(file));
+            }
+            if (entry.algorithm < 0 || entry.algorithm >= ALGORITHM_NAMES.length) {
+                return new Result(file, null, -1, 0, "recorded with unknown algorithm " + entry.algorithm);
+            }
+
+            long[] mismatches;
+            try {
+                mismatches = mismatches(lock, recovered, gradient, message, width, height, entry.renderer());
+            } catch (IllegalArgumentException e) {
+                return new Result(file, null, -1, 0, e.getMessage());
+            }
+            double mismatch = (double) mismatches[entry.algorithm] / ((long) width * height);
+            return new Result(file, lock, entry.algorithm, mismatch, mismatch > TOLERANCE
+                    ? "does not hide " + lock + " by " + ALGORITHM_NAMES[entry.algorithm] + " as recorded" : null);
+        }
+
+        Lock best = null;
+        int bestAlgorithm = -1;
+        long bestMismatches = Long.MAX_VALUE;
+        long runnerUp = Long.MAX_VALUE;
+        for (Lock lock : candidates) {
+            long[] mismatches;
+            try {
+                mismatches = mismatches(lock, recovered, gradient, message, width, height, null);
+            } catch (IllegalArgumentException e) {
+                return new Result(file, null, -1, 0, e.getMessage());
+            }
+
+            long lockMismatches = Long.MAX_VALUE;
+            int lockAlgorithm = -1;
+            for (int algorithm = 0; algorithm < mismatches.length; algorithm++) {
+                if (mismatches[algorithm] < lockMismatches) {
+                    lockMismatches = mismatches[algorithm];
+                    lockAlgorithm = algorithm;
+                }
+            }
+
+            if (lockMismatches < bestMismatches) {
+                runnerUp = bestMismatches;
+                bestMismatches = lockMismatches;
+                best = lock;
+                bestAlgorithm = lockAlgorithm;
+            }
+            else if (lockMismatches < runnerUp) {
+                runnerUp = lockMismatches;
+            }
+        }
+
+        double mismatch = (double) bestMismatches / ((long) width * height);
+        String problem = null;
+        if (mismatch > TOLERANCE) {
+            problem = "no lock matches";
+        }
+        else if (runnerUp == bestMismatches) {
+            problem = "matches more than one lock";
+        }
+        return new Result(file, best, bestAlgorithm, mismatch, problem);
+    }
+
+    /**
+     * Compare what an image hides with a lock, undoing each algorithm
+     *
+     * @param renderer the renderer that drew the lock's text, or null for the one that draws it here
+     * @return the number of pixels that differ from the lock's text for each algorithm, by algorithm number, or
+     *         Long.MAX_VALUE for the algorithms that cannot have hidden it
+     * @throws IllegalArgumentException if the lock's text cannot be drawn
+     */
+    private static long[] mismatches(Lock lock, long[][] recovered, GradientColumns gradient, byte[] message,
+                                     int width, int height, String renderer) {
+        String code = lock.name + "-" + lock.code;
+        long[] mismatches = new long[ALGORITHM_NAMES.length];
+        Arrays.fill(mismatches, Long.MAX_VALUE);
+
+        if (Arrays.equals(message, ImageGenerator.binaryMessage(code).getBytes(StandardCharsets.UTF_8))) {
+            mismatches[BINARY] = 0;
+            return mismatches;
+        }
+
+        long[] expected = renderer != null ? TextMask.of(code, width, height, renderer).bits
+                : TextMask.of(code, width, height).bits;
+        for (int algorithm = 0; algorithm < recovered.length; algorithm++) {
+            long count = 0;
+            for (int i = 0; i < expected.length; i++) {
+                count += Long.bitCount(expected[i] ^ recovered[algorithm][i]);
+            }
+            mismatches[algorithm] = count;
+        }
+        mismatches[GRADIENT] = gradient.mismatches(expected);
+        return mismatches;
+    }
+
+    /**
+     * @param dir a directory of images
+     * @return the directory's manifest entry for each image, by file name, or null if it has no manifest
+     * @throws IOException if the manifest cannot be read
+     */
+    private synchronized Map<String, OutputManifest.Entry> manifestIn(Path dir) throws IOException {
+        if (manifests.containsKey(dir)) {
+            return manifests.get(dir);
+        }
+
+        Map<String, OutputManifest.Entry> byFile = null;
+        Path manifest = dir.resolve(OutputManifest.FILE_NAME);
+        if (Files.isRegularFile(manifest)) {
+            byFile = new HashMap<>();
+            for (OutputManifest.Entry entry : OutputManifest.read(manifest).getEntries()) {
+                byFile.put(entry.file, entry);
+            }
+        }
+        manifests.put(dir, byFile);
+        return byFile;
+    }
+
+    /**
+     * Undo the red, green, blue and static algorithms, giving the text mask each would have hidden
+     */
+    private static long[][] recover(int[] argb, int width, int height) {
+        long[][] masks = new long[4][(width * height + 63) >>> 6];
+
+        for (int i = 0; i < argb.length; i++) {
+            int pixel = argb[i];
+            int red = (pixel >> 16) & 0xff;
+            int green = (pixel >> 8) & 0xff;
+            int blue = pixel & 0xff;
+
+            int word = i >>> 6;
+            masks[0][word] |= (long) (red & 1) << i;
+            masks[1][word] |= (long) (green & 1) << i;
+            masks[2][word] |= (long) (blue & 1) << i;
+            if (red == green || green == blue || red == blue) {
+                masks[3][word] |= 1L << i;
+            }
+        }
+
+        return masks;
+    }
+
+    private static String groupOf(Path file) {
+        return file.getFileName().toString().substring(0, 1);
+    }
+
+    /**
+     * The columns of an image, undoing the gradient algorithm. Behind its black text each column shows the blue
+     * level ImageGenerator.gradientBlue gives its original position, so the level gives the column its place back.
+     * A slot wider than 256 columns spreads the gradient over the 256 levels, and nothing in the image tells apart the
+     * columns that share a level. Those columns are matched instead to the expected text's columns at the positions
+     * with that level, each pairing the closest remaining columns.
+     *
+     * Level 0 is black, where the text cannot be told from the gradient, so the columns at level 0 are not compared.
+     */
+    private static class GradientColumns {
+        private final int width;
+        private final int height;
+
+        /** The black pixels of each column of the image, one bit per row, by the blue level behind them */
+        private final List<List<long[]>> levels;
+
+        GradientColumns(int[] argb, int width, int height) {
+            this.width = width;
+            this.height = height;
+            this.levels = emptyLevels();
+
+            for (int col = 0; col < width; col++) {
+                long[] black = new long[(height + 63) >>> 6];
+                int level = 0;
+                for (int row = 0; row < height; row++) {
+                    int rgb = argb[row * width + col];
+                    if ((rgb & 0xffffff) == 0) {
+                        black[row >>> 6] |= 1L << row;
+                    }
+                    level = Math.max(level, rgb & 0xff);
+                }
+                levels.get(level).add(black);
+            }
+        }
+
+        /**
+         * @param expected the text mask a lock would have drawn
+         * @return the number of pixels that differ from the text, once the columns are put back in place
+         */
+        long mismatches(long[] expected) {
+            List<List<long[]>> expectedLevels = emptyLevels();
+            for (int col = 0; col < width; col++) {
+                long[] text = new long[(height + 63) >>> 6];
+                for (int row = 0; row < height; row++) {
+                    int i = row * width + col;
+                    if ((expected[i >>> 6] & (1L << i)) != 0) {
+                        text[row >>> 6] |= 1L << row;
+                    }
+                }
+                expectedLevels.get(ImageGenerator.gradientBlue(col, width)).add(text);
+            }
+
+            long mismatches = 0;
+            for (int level = 1; level < levels.size(); level++) {
+                mismatches += match(levels.get(level), expectedLevels.get(level));
+            }
+            return mismatches;
+        }
+
+        /**
+         * Pair the columns sharing a level, closest first. A column left over when the counts differ counts each of
+         * its black pixels as a mismatch.
+         *
+         * @return the number of pixels that differ between the paired columns
+         */
+        private static long match(List<long[]> actual, List<long[]> expected) {
+            if (actual.size() == 1 && expected.size() == 1) {
+                return differ(actual.get(0), expected.get(0));
+            }
+
+            // Each pair as its difference above its index, so that sorting puts the closest first
+            long[] pairs = new long[actual.size() * expected.size()];
+            for (int a = 0; a < actual.size(); a++) {
+                for (int e = 0; e < expected.size(); e++) {
+                    int index = a * expected.size() + e;
+                    pairs[index] = ((long) differ(actual.get(a), expected.get(e)) << 32) | index;
+                }
+            }
+            Arrays.sort(pairs);
+
+            boolean[] actualPaired = new boolean[actual.size()];
+            boolean[] expectedPaired = new boolean[expected.size()];
+            long mismatches = 0;
+            for (long pair : pairs) {
+                int a = (int) pair / expected.size();
+                int e = (int) pair % expected.size();
+                if (!actualPaired[a] && !expectedPaired[e]) {
+                    actualPaired[a] = true;
+                    expectedPaired[e] = true;
+                    mismatches += pair >>> 32;
+                }
+            }
+            for (int a = 0; a < actual.size(); a++) {
+                mismatches += actualPaired[a] ? 0 : differ(actual.get(a), new long[0]);
+            }
+            for (int e = 0; e < expected.size(); e++) {
+                mismatches += expectedPaired[e] ? 0 : differ(expected.get(e), new long[0]);
+            }
+            return mismatches;
+        }
+
+        private static int differ(long[] a, long[] b) {
+            int count = 0;
+            for (int i = 0; i < a.length; i++) {
+                count += Long.bitCount(a[i] ^ (i < b.length ? b[i] : 0));
+            }
+            return count;
+        }
+
+        private static List<List<long[]>> emptyLevels() {
+            List<List<long[]>> levels = new ArrayList<>(256);
+            for (int level = 0; level < 256; level++) {
+                levels.add(new ArrayList<>());
+            }
+            return levels;
+        }
+    }
+
+    /**
+     * The outcome of verifying one image
+     */
+    public static class Result {
+        final Path file;
+        final Lock lock;
+        final int algorithm;
+        final double mismatch;
+        final String problem;
+
+        Result(Path file, Lock lock, int algorithm, double mismatch, String problem) {
+            this.file = file;
+            this.lock = lock;
+            this.algorithm = algorithm;
+            this.mismatch = mismatch;
+            this.problem = problem;
+        }
+
+        /**
+         * @return true if the image clearly hides exactly one lock's code
+         */
+        public boolean passed() {
+            return problem == null;
+        }
+
+        @Override
+        public String toString() {
+            String name = file.getFileName().toString();
+            String match = lock == null ? "" : String.format(" %s (%s, %.2f%% differs)", lock.name,
+                    ALGORITHM_NAMES[algorithm], mismatch * 100);
+            return (passed() ? "PASS " : "FAIL ") + name + match + (passed() ? "" : ": " + problem);
+        }
+    }
+
+    static {
+        ImageIO.setUseCache(false);
+    }
+}
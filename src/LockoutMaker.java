@@ -1,82 +1,1080 @@
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
 public class LockoutMaker {
+    private final static int IMAGE_WIDTH = 200;
+    private final static int IMAGE_HEIGHT = 150;
+
+    /**
+     * The version of the way locks are generated, recorded in the manifest with each image. It changes whenever the
+     * same inputs would give a different image, so that incremental runs generate every lock again.
+     */
+    final static int GENERATOR_VERSION = 2;
+
+    /** How long a watched file must go unchanged before it is regenerated, as saving a file may take several writes */
+    private final static long SETTLE_MILLIS = 100;
+
     public static void main(String[] args) {
-        if (args.length != 1) {
-            args = new String[]{"Lockout.txt"};
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage());
+            System.err.println(Options.USAGE);
+            System.exit(2);
+            return;
+        }
+
+        Queue<String> failures = new ConcurrentLinkedQueue<>();
+
+        if (options.mergeShards > 0) {
+            try {
+                mergeShards(options, failures);
+            } catch (IOException e) {
+                System.err.println("Could not merge shards: " + e.getMessage());
+                System.exit(1);
+                return;
+            }
+            exitIfFailed(failures, "problem(s) found in the shards, the manifest was not written:");
+            return;
+        }
+
+        boolean seedGiven = options.seedGiven;
+        OutputManifest previous = new OutputManifest();
+        if (options.incremental) {
+            try {
+                previous = OutputManifest.read(options.outDir.resolve(OutputManifest.FILE_NAME));
+
+                // A shard that has run since the last merge has newer entries for its own locks
+                if (options.shardCount > 1) {
+                    for (OutputManifest.Entry entry : OutputManifest.read(options.manifestFile()).getEntries()) {
+                        previous.put(entry);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Could not read manifest: " + e.getMessage());
+                System.exit(1);
+                return;
+            }
+
+            // Without the seed of the previous run every image would change
+            if (!seedGiven && previous.getSeed() != null) {
+                options.seed = previous.getSeed();
+                seedGiven = true;
+            }
+        }
+
+        if (options.shardCount > 1) {
+            if (!seedGiven) {
+                // Each shard would choose its own
+                System.err.println("--shard needs --seed, so that every shard uses the same seed");
+                System.exit(2);
+                return;
+            }
+            System.out.println("Generating shard " + options.shard + " of " + options.shardCount + " with seed "
+                    + options.seed);
+        }
+        else {
+            System.out.println("Generating locks with seed " + options.seed);
+        }
+
+        if (options.metrics) {
+            Metrics.setEnabled(true);
+            Metrics.reset();
+        }
+
+        if (options.watch) {
+            try {
+                watch(options, previous);
+            } catch (IOException e) {
+                System.err.println("Could not watch for changes: " + e.getMessage());
+                System.exit(1);
+            }
+            return;
         }
 
-        File file = new File(args[0]);
-        String contents;
         try {
-            contents = Files.readString(file.toPath());
+            generateAll(options, previous, failures);
         } catch (IOException e) {
             System.err.println("Could not load lock file: " + e.getMessage());
             System.exit(1);
             return;
         }
 
-        String[] lines = contents.split("\n");
-        String[] lockLines = new String[lines.length - 1];
-        System.arraycopy(lines, 1, lockLines, 0, lockLines.length);
+        if (options.metrics) {
+            Metrics.printSummary(System.out);
+        }
+
+        exitIfFailed(failures, "lock(s) could not be generated:");
+    }
+
+    private static void exitIfFailed(Queue<String> failures, String description) {
+        if (!failures.isEmpty()) {
+            printFailures(failures, description);
+            System.exit(1);
+        }
+    }
+
+    private static void printFailures(Queue<String> failures, String description) {
+        if (!failures.isEmpty()) {
+            System.err.println(failures.size() + " " + description);
+            for (String failure : failures) {
+                System.err.println("  " + failure);
+            }
+        }
+    }
+
+    /**
+     * Generate the locks, then generate them again each time the lock file or a cover image changes, until the
+     * process is stopped. Each run is incremental against the one before it, so only locks that were added or
+     * changed, or whose cover changed, are generated, and the images of locks that were removed are deleted. The
+     * covers, glyphs and compiled code stay warm between runs, so a run after a small edit takes a fraction of a
+     * second however long the lock file is.
+     *
+     * @param options the lock file, output directory and settings of the runs
+     * @param previous the manifest of the run before the first
+     * @throws IOException if the lock file or images directory cannot be watched
+     */
+    private static void watch(Options options, OutputManifest previous) throws IOException {
+        Path lockFile = options.lockFile.toAbsolutePath();
+        Path imagesDir = CoverImageCache.defaultImagesDir().toPath().toAbsolutePath();
+
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            // Directories are watched rather than the lock file, which editors often replace instead of changing
+            lockFile.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            if (Files.isDirectory(imagesDir)) {
+                imagesDir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            }
+
+            do {
+                long start = System.nanoTime();
+                Queue<String> failures = new ConcurrentLinkedQueue<>();
+                try {
+                    previous = generateAll(options, previous, failures);
+                } catch (InterruptedIOException e) {
+                    return;
+                } catch (IOException e) {
+                    // Perhaps caught halfway through being saved, it is read again when it next changes
+                    failures.add("Could not load lock file: " + e.getMessage());
+                }
+                printFailures(failures, "lock(s) could not be generated:");
+
+                if (options.metrics) {
+                    Metrics.printSummary(System.out);
+                    Metrics.reset();
+                }
+                System.out.println("Done in " + (System.nanoTime() - start) / 1_000_000 + " ms, watching "
+                        + lockFile + " and " + imagesDir + " for changes");
+            } while (awaitChange(watcher, lockFile, imagesDir));
+        }
+    }
+
+    /**
+     * Wait until the lock file or a cover image has changed, and then until nothing more has changed for
+     * SETTLE_MILLIS, so that a file saved in several writes is only regenerated once. Changed covers are removed from
+     * the cover cache.
+     *
+     * @return false if the thread was interrupted while waiting
+     */
+    private static boolean awaitChange(WatchService watcher, Path lockFile, Path imagesDir) {
+        CoverImageCache covers = CoverImageCache.getShared();
+        boolean changed = false;
+        try {
+            WatchKey key = watcher.take();
+            while (key != null) {
+                Path dir = (Path) key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        // Changes were lost, any of the covers may have changed
+                        covers.clear();
+                        changed = true;
+                        continue;
+                    }
+
+                    Path name = (Path) event.context();
+                    if (dir.equals(lockFile.getParent()) && name.equals(lockFile.getFileName())) {
+                        changed = true;
+                    }
+                    if (dir.equals(imagesDir) && CoverImageCache.isImageFile(name.toString())) {
+                        covers.forget(dir.resolve(name).toFile());
+                        changed = true;
+                    }
+                }
+                if (!key.reset()) {
+                    System.err.println("Stopped watching " + dir + ", it no longer exists");
+                }
+
+                key = changed ? watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS) : watcher.take();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Generate and save the image for every lock in a lock file, and record them in the output directory's manifest.
+     * Locks whose inputs match their entry in the previous manifest, and whose images are still in place, are not
+     * generated again.
+     *
+     * Each lock passes through a pipeline of stages: its row is parsed here, then its cover is loaded, its code is
+     * hidden, its image is encoded and the image is written. Each stage has its own threads and a bounded queue, so
+     * disk and CPU are kept busy at once, and the number of images in memory does not grow with the lock file.
+     *
+     * A sharded run only generates the locks of the groups in its shard, and writes them to the shard's partial
+     * manifest. Since a group never spans shards, each algorithm is still used once per group, and since every image
+     * file name starts with its group's name, shards never choose the same file name.
+     *
+     * An incremental run deletes the images of the locks in the previous manifest that are no longer in the lock
+     * file, apart from those of other shards.
+     *
+     * With --sheets the images are packed into sprite sheets instead of being written one per lock, and an index of
+     * the sheets is written in place of the manifest.
+     *
+     * @param options the lock file, output directory and settings of the run
+     * @param previous the manifest of the previous run, which is empty unless the run is incremental
+     * @param failures collects a description of each lock that could not be generated
+     * @return the manifest written, or null if sprite sheets were written
+     * @throws IOException if the lock file could not be read or the manifest could not be written
+     */
+    private static OutputManifest generateAll(Options options, OutputManifest previous, Queue<String> failures)
+            throws IOException {
+        int threads = options.threads;
+        long seed = options.seed;
+        PngEncoder encoder = options.encoder();
+        CoverImageCache covers = CoverImageCache.getShared();
+
+        OutputManifest manifest = new OutputManifest();
+        FileNames fileNames = new FileNames(previous);
+        Set<String> listed = new HashSet<>();
+        int unchanged = 0;
+
+        // Each lock being embedded or encoded draws into a session of its own, which is handed back once the image is
+        // encoded. There is a session for every lock those stages can hold at once.
+        BlockingQueue<GeneratorSession> sessions = new ArrayBlockingQueue<>(threads * 6);
+        while (sessions.remainingCapacity() > 0) {
+            sessions.add(new GeneratorSession(IMAGE_WIDTH, IMAGE_HEIGHT, 1, 1));
+        }
+
+        Sheets sheets = options.sheetRows > 0 ? new Sheets(options, encoder, failures) : null;
+
+        PipelineStage.FailureHandler<LockJob> failed = (job, e) -> {
+            failures.add(job.lock + ": " + e);
+            // The lock's image was stale, or it would not have been generated
+            removeStale(job.lock, job.old, options.outDir, failures);
+            if (job.session != null) {
+                sessions.add(job.session);
+                job.session = null;
+            }
+            if (job.sheet != null) {
+                sheets.giveUp(job);
+            }
+        };
+        PipelineStage<LockJob> writeStage = new PipelineStage<>("write", options.writeThreads,
+                options.writeThreads * 4, job -> write(job, options.outDir, manifest, seed), failed);
+        PipelineStage<LockJob> encodeStage = new PipelineStage<>("encode", threads, threads * 4, job -> {
+            encode(job, encoder);
+            sessions.put(job.session);
+            job.session = null;
+            writeStage.put(job);
+        }, failed);
+        PipelineStage<LockJob> embedStage = new PipelineStage<>("embed", threads, threads * 4, job -> {
+            job.session = sessions.take();
+            embed(job, options.payload);
+            if (job.sheet != null) {
+                sheets.fill(job);
+                sessions.put(job.session);
+                job.session = null;
+            }
+            else {
+                encodeStage.put(job);
+            }
+        }, failed);
+        PipelineStage<LockJob> coverStage = new PipelineStage<>("cover", options.coverThreads,
+                options.coverThreads * 4, job -> {
+            job.cover = covers.getCover(job.coverFile, IMAGE_WIDTH, IMAGE_HEIGHT);
+            embedStage.put(job);
+        }, failed);
+        List<PipelineStage<?>> stages = new ArrayList<>(List.of(coverStage, embedStage));
+        if (sheets != null) {
+            stages.addAll(sheets.stages());
+        }
+        stages.addAll(List.of(encodeStage, writeStage));
+
+        // Groups are discovered as the file is read. Each lock is handed to the pipeline as soon as it is read, its
+        // algorithm decided here so that each algorithm is still only used once per group.
+        Map<String, LockGroup> lockGroups = new HashMap<>();
+        Map<String, List<OutputManifest.Entry>> previousGroups = new HashMap<>();
+        for (OutputManifest.Entry entry : previous.getEntries()) {
+            previousGroups.computeIfAbsent(groupName(entry.lockName), name -> new ArrayList<>()).add(entry);
+        }
+
+        try {
+            try (LockFileReader reader = new LockFileReader(options.lockFile)) {
+                Files.createDirectories(options.outDir);
+
+                Lock lock;
+                while ((lock = nextLock(reader)) != null) {
+                    String groupName = groupName(lock.name);
+                    if (shardOf(groupName, options.shardCount) != options.shard) {
+                        continue;
+                    }
+                    listed.add(lock.name);
+                    OutputManifest.Entry old = previous.get(lock.name);
+
+                    LockGroup group = lockGroups.computeIfAbsent(groupName,
+                            name -> new LockGroup(name, seed, previousGroups.getOrDefault(name, List.of())));
+
+                    int algorithm = group.algorithmFor(lock.name);
+                    if (algorithm < 0) {
+                        failures.add(lock + ": group " + groupName + " has more than "
+                                + ImageGenerator.NUM_ALGORITHMS + " locks");
+                        removeStale(lock, old, options.outDir, failures);
+                        continue;
+                    }
+
+                    // The cover is chosen here rather than by the generator, so that it is known before generating
+                    SplittableRandom lockRandom = randomFor(seed, "lock:" + lock.name);
+                    File cover;
+                    try {
+                        cover = ImageGenerator.usesCover(algorithm) ? covers.randomImageFile(lockRandom) : null;
+                    } catch (IOException e) {
+                        failures.add(lock + ": " + e);
+                        removeStale(lock, old, options.outDir, failures);
+                        continue;
+                    }
+                    String coverKey = OutputManifest.coverKey(cover);
+                    String payloadKey = OutputManifest.payloadKey(algorithm, options.payload);
+                    String generatorKey = OutputManifest.generatorKey(GENERATOR_VERSION,
+                            TextMask.rendererFor(lock.name + "-" + lock.code));
+
+                    if (old != null && old.hasInputs(lock.code, algorithm, coverKey, payloadKey, generatorKey, seed)
+                            && old.outputCurrent(options.outDir)) {
+                        // Its image has just been hashed if its modification time was not recorded
+                        manifest.put(old.withModified(options.outDir));
+                        unchanged++;
+                        continue;
+                    }
+
+                    String filename = sheets != null ? null
+                            : fileNames.assign(lock.name, groupName, randomFor(seed, "file:" + lock.name));
+                    LockJob job = new LockJob(lock, algorithm, lockRandom, cover, coverKey, payloadKey, generatorKey,
+                            filename, old);
+                    if (sheets != null) {
+                        sheets.reserve(job);
+                    }
+                    if (cover != null) {
+                        coverStage.put(job);
+                    }
+                    else {
+                        embedStage.put(job);
+                    }
+                }
+
+                failures.addAll(reader.getProblems());
+                if (sheets != null) {
+                    sheets.closeLastSheet();
+                }
+            }
+            finally {
+                // Each stage is finished only once the stages that feed it have finished
+                for (PipelineStage<?> stage : stages) {
+                    stage.finish();
+                    failures.addAll(stage.getUnhandledFailures());
+                }
+            }
+        } catch (InterruptedException e) {
+            for (PipelineStage<?> stage : stages) {
+                stage.abandon();
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while generating locks");
+        }
+
+        if (sheets != null) {
+            sheets.writeIndex(seed);
+            return null;
+        }
+
+        manifest.write(options.manifestFile());
+
+        if (options.incremental) {
+            int removed = 0;
+            for (OutputManifest.Entry entry : previous.getEntries()) {
+                if (!listed.contains(entry.lockName)
+                        && shardOf(groupName(entry.lockName), options.shardCount) == options.shard) {
+                    Files.deleteIfExists(options.outDir.resolve(entry.file));
+                    removed++;
+                }
+            }
+            System.out.println((manifest.size() - unchanged) + " images generated, " + unchanged + " unchanged, "
+                    + removed + " removed");
+        }
+        return manifest;
+    }
+
+    /**
+     * Remove the image of a lock that could not be generated. The lock is still listed, so no run would remove its
+     * image otherwise, and without it the next run cannot mistake the stale image for a current one.
+     *
+     * @param lock the lock that could not be generated
+     * @param old the lock's entry in the previous manifest, or null if it had none
+     * @param outDir the output directory
+     * @param failures collects a description of the image if it cannot be removed
+     */
+    private static void removeStale(Lock lock, OutputManifest.Entry old, Path outDir, Queue<String> failures) {
+        if (old == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(outDir.resolve(old.file));
+        } catch (IOException e) {
+            failures.add(lock + ": could not remove stale image " + old.file + ": " + e);
+        }
+    }
+
+    /**
+     * Hide a lock's code in its image, drawn in the job's session
+     */
+    private static void embed(LockJob job, PayloadCodec payload) throws IOException {
+        ImageGenerator gen = job.session.newGenerator(job.lock.name + "-" + job.lock.code, job.random);
+        gen.setPayloadCodec(payload);
+        gen.doAlgorithm(0, job.algorithm, job.cover);
+
+        job.gen = gen;
+        job.cover = null;
+    }
+
+    /**
+     * Encode a lock's image as a png, in memory
+     */
+    private static void encode(LockJob job, PngEncoder encoder) throws IOException {
+        long start = Metrics.start();
+        ByteArrayOutputStream png = new ByteArrayOutputStream(64 * 1024);
+        job.gen.writeImage(png, encoder);
+        job.png = png.toByteArray();
+        Metrics.end(Metrics.Stage.ENCODE, start);
+
+        job.sha256 = OutputManifest.sha256(job.png);
+        job.gen = null;
+    }
+
+    /**
+     * Save a lock's encoded image, record it in the manifest and remove the image it replaces
+     */
+    private static void write(LockJob job, Path outDir, OutputManifest manifest, long seed) throws IOException {
+        long start = Metrics.start();
+        long modified;
+        try {
+            Path path = outDir.resolve(job.filename);
+            Files.write(path, job.png);
+            modified = Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            throw new IOException("Cannot save image: " + e.getMessage(), e);
+        }
+        Metrics.end(Metrics.Stage.WRITE, start);
+        Metrics.count(Metrics.Counter.IMAGES, 1);
+        Metrics.count(Metrics.Counter.BYTES_WRITTEN, job.png.length);
+
+        manifest.put(new OutputManifest.Entry(job.lock.name, job.lock.code, job.algorithm, job.coverKey,
+                job.payloadKey, job.generatorKey, seed, job.filename, job.png.length, modified, job.sha256));
+        job.png = null;
+
+        if (job.old != null && !job.old.file.equals(job.filename)) {
+            Files.deleteIfExists(outDir.resolve(job.old.file));
+        }
+    }
+
+    /**
+     * Combine the partial manifests of every shard of a run into the output directory's manifest. The manifest is only
+     * written, and the partial manifests removed, if every shard has finished with the same seed, each lock is in the
+     * manifest of the shard its group belongs to, no two locks share an image file, every image is in place exactly as
+     * it was recorded, and every lock in the lock file has an image of its current code.
+     *
+     * @param options the lock file, output directory and number of shards
+     * @param failures collects a description of each problem found
+     * @throws IOException if a partial manifest or the lock file cannot be read, or the manifest cannot be written
+     */
+    private static void mergeShards(Options options, Queue<String> failures) throws IOException {
+        int shardCount = options.mergeShards;
+        OutputManifest merged = new OutputManifest();
+        Map<String, String> fileOwners = new HashMap<>();
+        List<Path> partials = new ArrayList<>();
+        Long seed = null;
+
+        for (int shard = 0; shard < shardCount; shard++) {
+            Path partial = options.outDir.resolve(OutputManifest.shardFileName(shard, shardCount));
+            if (!Files.isRegularFile(partial)) {
+                failures.add("shard " + shard + " has not written " + partial);
+                continue;
+            }
+            partials.add(partial);
+
+            for (OutputManifest.Entry entry : OutputManifest.read(partial).getEntries()) {
+                int expected = shardOf(groupName(entry.lockName), shardCount);
+                if (expected != shard) {
+                    failures.add(entry.lockName + ": generated by shard " + shard + " instead of shard " + expected);
+                    continue;
+                }
+                if (seed == null) {
+                    seed = entry.seed;
+                }
+                else if (seed != entry.seed) {
+                    failures.add(entry.lockName + ": generated with seed " + entry.seed + " instead of " + seed);
+                }
+
+                String owner = fileOwners.putIfAbsent(entry.file, entry.lockName);
+                if (owner != null) {
+                    failures.add(entry.lockName + ": shares " + entry.file + " with " + owner);
+                }
+                if (!entry.outputMatches(options.outDir)) {
+                    failures.add(entry.lockName + ": " + entry.file + " is missing or is not the image recorded");
+                }
+                merged.put(entry);
+            }
+        }
+
+        Set<String> listed = new HashSet<>();
+        try (LockFileReader reader = new LockFileReader(options.lockFile)) {
+            Lock lock;
+            while ((lock = reader.next()) != null) {
+                listed.add(lock.name);
+                OutputManifest.Entry entry = merged.get(lock.name);
+                if (entry == null) {
+                    failures.add(lock + ": not generated by shard " + shardOf(groupName(lock.name), shardCount));
+                }
+                else if (!entry.code.equals(lock.code)) {
+                    failures.add(lock + ": generated with code " + entry.code + " instead of " + lock.code);
+                }
+            }
+            failures.addAll(reader.getProblems());
+        }
+        for (OutputManifest.Entry entry : merged.getEntries()) {
+            if (!listed.contains(entry.lockName)) {
+                failures.add(entry.lockName + ": not in " + options.lockFile);
+            }
+        }
+
+        if (!failures.isEmpty()) {
+            return;
+        }
+
+        merged.write(options.outDir.resolve(OutputManifest.FILE_NAME));
+        for (Path partial : partials) {
+            Files.delete(partial);
+        }
+        System.out.println("Merged " + merged.size() + " locks from " + shardCount + " shards");
+    }
+
+    /**
+     * @return the name of the group a lock belongs to, which is the first character of its name
+     */
+    static String groupName(String lockName) {
+        return lockName.substring(0, 1);
+    }
+
+    /**
+     * Decide which shard of a run generates a group's locks. String.hashCode is the same on every JVM, so every
+     * process and machine sharing a run agrees without talking to each other.
+     *
+     * @param groupName the name of the group
+     * @param shardCount the number of shards the run is split into
+     * @return the index of the shard, from 0
+     */
+    static int shardOf(String groupName, int shardCount) {
+        return Math.floorMod(groupName.hashCode(), shardCount);
+    }
+
+    private static Lock nextLock(LockFileReader reader) throws IOException {
+        long start = Metrics.start();
+        Lock lock = reader.next();
+        Metrics.end(Metrics.Stage.PARSE, start);
+        return lock;
+    }
+
+    /**
+     * Get an independent random stream for part of a run. The same seed and key always give the same stream, no
+     * matter which thread uses it or in what order the streams are created.
+     *
+     * @param seed the seed of the whole run
+     * @param key the name of the part of the run, such as a lock or a group
+     * @return the random stream for that part of the run
+     */
+    static SplittableRandom randomFor(long seed, String key) {
+        return new SplittableRandom(seed ^ hash64(key));
+    }
+
+    /**
+     * Hash every byte of a key to 64 bits, so that keys whose String.hashCode collide still get streams of their own.
+     * This is FNV-1a over the UTF-8 bytes, finished with the MurmurHash3 mixer so that similar keys do not give
+     * similar seeds.
+     */
+    static long hash64(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    /**
+     * The settings of a run, read from the command line
+     */
+    static class Options {
+        static final String USAGE = "Usage: LockoutMaker [--threads n] [--cover-threads n] [--write-threads n] [--seed n]\n"
+                + "           [--out dir] [--png-level 0-9] [--png-parallel] [--incremental] [--metrics]\n"
+                + "           [--payload legacy|BITS:CHANNELS[:crc]] [--shard i/n] [--watch]\n"
+                + "           [--sheets ROWSxCOLS [--archive file.zip|file.tar]] [lockfile]\n"
+                + "       LockoutMaker --merge-shards n [--out dir] [lockfile]";
+
+        Path lockFile = Paths.get("Lockout.txt");
+        Path outDir = Paths.get("");
+        int threads = Runtime.getRuntime().availableProcessors();
+        int coverThreads = 2;
+        int writeThreads = 2;
+        long seed = new SplittableRandom().nextLong();
+        int pngLevel = Deflater.DEFAULT_COMPRESSION;
+        boolean pngParallel;
+        boolean seedGiven;
+        boolean incremental;
+        boolean metrics;
+
+        /** How the binary algorithm stores each lock's sentence */
+        PayloadCodec payload = PayloadCodec.LEGACY;
+
+        /** Keep running, regenerating the locks whenever the lock file or the covers change */
+        boolean watch;
+
+        /** The shard of the run to generate, from 0, and the number of shards the run is split into */
+        int shard;
+        int shardCount = 1;
+
+        /** The number of shards to merge the manifests of, or 0 to generate instead */
+        int mergeShards;
+
+        /** The slots of each sprite sheet, or 0 to write an image for each lock */
+        int sheetRows;
+        int sheetCols;
+
+        /** The zip or tar file to write the sprite sheets into, or null to write them into the output directory */
+        String archive;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--threads":
+                        options.threads = positiveInt(args, ++i);
+                        break;
+                    case "--cover-threads":
+                        options.coverThreads = positiveInt(args, ++i);
+                        break;
+                    case "--write-threads":
+                        options.writeThreads = positiveInt(args, ++i);
+                        break;
+                    case "--seed":
+                        options.seed = Long.parseLong(value(args, ++i));
+                        options.seedGiven = true;
+                        break;
+                    case "--out":
+                        options.outDir = Paths.get(value(args, ++i));
+                        break;
+                    case "--png-level":
+                        options.pngLevel = Integer.parseInt(value(args, ++i));
+                        break;
+                    case "--png-parallel":
+                        options.pngParallel = true;
+                        break;
+                    case "--payload":
+                        options.payload = PayloadCodec.parse(value(args, ++i));
+                        break;
+                    case "--incremental":
+                        options.incremental = true;
+                        break;
+                    case "--metrics":
+                        options.metrics = true;
+                        break;
+                    case "--watch":
+                        options.watch = true;
+                        options.incremental = true;
+                        break;
+                    case "--shard":
+                        String[] shard = value(args, ++i).split("/");
+                        if (shard.length != 2) {
+                            throw new IllegalArgumentException("--shard must be given as index/count, such as 0/4");
+                        }
+                        options.shard = Integer.parseInt(shard[0]);
+                        options.shardCount = Integer.parseInt(shard[1]);
+                        if (options.shardCount < 1 || options.shard < 0 || options.shard >= options.shardCount) {
+                            throw new IllegalArgumentException("--shard index must be from 0 to count - 1");
+                        }
+                        break;
+                    case "--merge-shards":
+                        options.mergeShards = positiveInt(args, ++i);
+                        break;
+                    case "--sheets":
+                        String[] slots = value(args, ++i).split("x");
+                        if (slots.length != 2) {
+                            throw new IllegalArgumentException("--sheets must be given as rowsxcols, such as 8x8");
+                        }
+                        options.sheetRows = Integer.parseInt(slots[0]);
+                        options.sheetCols = Integer.parseInt(slots[1]);
+                        if (options.sheetRows < 1 || options.sheetCols < 1) {
+                            throw new IllegalArgumentException("--sheets needs at least one row and column");
+                        }
+                        break;
+                    case "--archive":
+                        options.archive = value(args, ++i);
+                        break;
+                    default:
+                        if (args[i].startsWith("--")) {
+                            throw new IllegalArgumentException("Unknown option " + args[i]);
+                        }
+                        options.lockFile = Paths.get(args[i]);
+                }
+            }
+
+            if (options.archive != null && options.sheetRows == 0) {
+                throw new IllegalArgumentException("--archive needs --sheets");
+            }
+            if (options.archive != null && !SheetOutput.isArchive(options.archive)) {
+                // It would be taken for a directory
+                throw new IllegalArgumentException("--archive needs a file name ending in .zip or .tar, not "
+                        + options.archive);
+            }
+            if (options.sheetRows > 0 && (options.incremental || options.shardCount > 1)) {
+                // Their manifests record a file for each lock
+                throw new IllegalArgumentException("--sheets cannot be used with --incremental, --watch or --shard");
+            }
+
+            // Checks the png settings while the usage message can still be shown
+            options.encoder();
+
+            return options;
+        }
+
+        PngEncoder encoder() {
+            return new PngEncoder(pngLevel, true, true, pngParallel);
+        }
 
-        Set<Lock> locks = Arrays.stream(lockLines)
-                .map(line->line.split("\t"))
-                .map(lineParts->new Lock(lineParts[0], lineParts[1]))
-                .collect(Collectors.toSet());
+        /**
+         * @return the manifest this run writes, which is the shard's partial manifest in a sharded run
+         */
+        Path manifestFile() {
+            if (shardCount > 1) {
+                return outDir.resolve(OutputManifest.shardFileName(shard, shardCount));
+            }
+            return outDir.resolve(OutputManifest.FILE_NAME);
+        }
 
-        Map<String, Set<Lock>> lockGroups = new HashMap<>();
+        private static int positiveInt(String[] args, int i) {
+            int count = Integer.parseInt(value(args, i));
+            if (count < 1) {
+                throw new IllegalArgumentException(args[i - 1] + " must be at least 1");
+            }
+            return count;
+        }
 
-        for (Lock lock : locks) {
-            String groupName = lock.name.substring(0,1);
-            Set<Lock> group = lockGroups.computeIfAbsent(groupName, name -> new HashSet<>());
-            group.add(lock);
+        private static String value(String[] args, int i) {
+            if (i >= args.length) {
+                throw new IllegalArgumentException(args[i - 1] + " needs a value");
+            }
+            return args[i];
         }
+    }
+
+    /**
+     * A lock on its way through the pipeline, gathering what each stage makes for the next
+     */
+    private static class LockJob {
+        final Lock lock;
+        final int algorithm;
+        final SplittableRandom random;
+        final File coverFile;
+        final String coverKey;
+        final String payloadKey;
+        final String generatorKey;
+        final String filename;
+
+        /** The lock's entry in the previous manifest, or null */
+        final OutputManifest.Entry old;
+
+        BufferedImage cover;
+        GeneratorSession session;
+        ImageGenerator gen;
+        byte[] png;
+        String sha256;
 
-        for (String groupName : lockGroups.keySet()) {
-            Set<Lock> lockGroup = lockGroups.get(groupName);
+        /** The sprite sheet and slot the lock's image goes in, or null if it is written to a file of its own */
+        SpriteSheet sheet;
+        int slot;
+
+        LockJob(Lock lock, int algorithm, SplittableRandom random, File coverFile, String coverKey, String payloadKey,
+                String generatorKey, String filename, OutputManifest.Entry old) {
+            this.lock = lock;
+            this.algorithm = algorithm;
+            this.random = random;
+            this.coverFile = coverFile;
+            this.coverKey = coverKey;
+            this.payloadKey = payloadKey;
+            this.generatorKey = generatorKey;
+            this.filename = filename;
+            this.old = old;
+        }
+    }
+
+    /**
+     * Packs the images of a run into sprite sheets. Locks are given slots in the order they are read, so the same lock
+     * file and seed always give the same sheets. Each sheet is encoded and written once all of its locks have been
+     * generated, into the output directory or an archive.
+     */
+    private static class Sheets {
+        private final int rows;
+        private final int cols;
+        private final PngEncoder encoder;
+        private final SheetOutput output;
+        private final PipelineStage<SpriteSheet> encodeStage;
+        private final PipelineStage<SpriteSheet> writeStage;
+
+        /** The sheets written so far, by number */
+        private final Map<Integer, SpriteSheet> written = new TreeMap<>();
+
+        /** The sheet being given slots, by the thread reading the lock file */
+        private SpriteSheet current;
+        private int count;
+
+        Sheets(Options options, PngEncoder encoder, Queue<String> failures) throws IOException {
+            this.rows = options.sheetRows;
+            this.cols = options.sheetCols;
+            this.encoder = encoder;
+            this.output = SheetOutput.open(options.archive != null ? options.outDir.resolve(options.archive)
+                    : options.outDir);
+
+            PipelineStage.FailureHandler<SpriteSheet> failed = (sheet, e) -> failures.add(sheet.file + ": " + e);
+            this.writeStage = new PipelineStage<>("sheet-write", 1, 2, this::write, failed);
+            this.encodeStage = new PipelineStage<>("sheet-encode", options.threads, 2, sheet -> {
+                encode(sheet);
+                writeStage.put(sheet);
+            }, failed);
+        }
+
+        List<PipelineStage<SpriteSheet>> stages() {
+            return List.of(encodeStage, writeStage);
+        }
+
+        /**
+         * Give a lock the next slot
+         */
+        void reserve(LockJob job) throws InterruptedException {
+            if (current == null) {
+                current = new SpriteSheet(count++, rows, cols, IMAGE_WIDTH, IMAGE_HEIGHT);
+            }
+            job.sheet = current;
+            job.slot = current.reserve(job.lock.name);
+            if (current.isFull()) {
+                closeLastSheet();
+            }
+        }
+
+        /**
+         * Give no more slots in the sheet being filled
+         */
+        void closeLastSheet() throws InterruptedException {
+            if (current != null) {
+                complete(current, current.close());
+                current = null;
+            }
+        }
+
+        /**
+         * Copy a lock's image from its session into its slot
+         */
+        void fill(LockJob job) throws InterruptedException {
+            SpriteSheet sheet = job.sheet;
+            job.sheet = null;
+            job.gen = null;
+            complete(sheet, sheet.fill(job.slot, job.session.image));
+        }
+
+        /**
+         * Leave the slot of a lock that could not be generated empty
+         */
+        void giveUp(LockJob job) {
+            SpriteSheet sheet = job.sheet;
+            job.sheet = null;
+            try {
+                complete(sheet, sheet.giveUp(job.slot));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void complete(SpriteSheet sheet, boolean complete) throws InterruptedException {
+            if (complete) {
+                encodeStage.put(sheet);
+            }
+        }
+
+        private void encode(SpriteSheet sheet) throws IOException {
+            long start = Metrics.start();
+            ByteArrayOutputStream png = new ByteArrayOutputStream(1 << 20);
+            encoder.write(sheet.image, png);
+            sheet.png = png.toByteArray();
+            sheet.image = null;
+            Metrics.end(Metrics.Stage.ENCODE, start);
+        }
+
+        private void write(SpriteSheet sheet) throws IOException {
+            long start = Metrics.start();
+            output.write(sheet.file, sheet.png);
+            Metrics.end(Metrics.Stage.WRITE, start);
+            Metrics.count(Metrics.Counter.IMAGES, sheet.size());
+            Metrics.count(Metrics.Counter.BYTES_WRITTEN, sheet.png.length);
+            sheet.png = null;
+
+            synchronized (written) {
+                written.put(sheet.number, sheet);
+            }
+        }
+
+        /**
+         * Write the index of the sheets once they have all been written, and close the output
+         */
+        void writeIndex(long seed) throws IOException {
+            StringWriter index = new StringWriter();
+            int locks = 0;
+            synchronized (written) {
+                SpriteSheet.writeIndex(written.values(), seed, index);
+                for (SpriteSheet sheet : written.values()) {
+                    locks += sheet.size();
+                }
+            }
+            output.write(SpriteSheet.INDEX_FILE_NAME, index.toString().getBytes(StandardCharsets.UTF_8));
+            output.close();
+
+            System.out.println("Wrote " + locks + " locks in " + written.size() + " sheets to " + output);
+        }
+    }
+
+    /**
+     * Hands out the image file names of a run so that no two locks share a file. The names from the previous
+     * manifest stay with their locks, so a lock that is not generated again keeps its image. A lock may be handed its
+     * own name back, which is only safe because LockFileReader never reads two locks with the same name.
+     */
+    private static class FileNames {
+        private final Map<String, String> owners = new HashMap<>();
+
+        FileNames(OutputManifest previous) {
+            for (OutputManifest.Entry entry : previous.getEntries()) {
+                owners.put(entry.file, entry.lockName);
+            }
+        }
+
+        /**
+         * @param lockName the lock that needs a file name
+         * @param groupName the group the lock belongs to, which starts the name
+         * @param random the stream to draw names from until one is free
+         * @return a name that no other lock uses
+         */
+        String assign(String lockName, String groupName, SplittableRandom random) {
+            while (true) {
+                String filename = String.format("%s%05d.png", groupName, random.nextInt(99999));
+                String owner = owners.putIfAbsent(filename, lockName);
+                if (owner == null || owner.equals(lockName)) {
+                    return filename;
+                }
+            }
+        }
+    }
+
+    /**
+     * A group of locks sharing the first character of their names, which hands each of its locks a different
+     * algorithm in a random order. A lock keeps the algorithm it had in the previous manifest while no other lock has
+     * taken it, so that adding or removing a lock does not change the images of the others.
+     */
+    private static class LockGroup {
+        private final int[] algorithms = new int[ImageGenerator.NUM_ALGORITHMS];
+        private final boolean[] used = new boolean[ImageGenerator.NUM_ALGORITHMS];
+
+        /** The lock that had each algorithm in the previous manifest, by algorithm, or null if none had it */
+        private final String[] previousLocks = new String[ImageGenerator.NUM_ALGORITHMS];
+
+        LockGroup(String groupName, long seed, List<OutputManifest.Entry> previous) {
+            SplittableRandom groupRandom = randomFor(seed, "group:" + groupName);
 
             // choose a random ordering of algorithms for the locks
-            int[] algorithms = new int[ImageGenerator.NUM_ALGORITHMS];
             for (int i = 0; i < algorithms.length; i++) {
                 algorithms[i] = i;
             }
             for (int i = 0; i < algorithms.length; i++) {
-                int pos = (int)(Math.random() * algorithms.length);
+                int pos = groupRandom.nextInt(algorithms.length);
                 int tmp = algorithms[i];
                 algorithms[i] = algorithms[pos];
                 algorithms[pos] = tmp;
             }
 
-            int algorithmIndex = 0;
-            for (Lock lock : lockGroup) {
-
-                ImageGenerator gen = new ImageGenerator(lock.name + "-" + lock.code, 200, 150);
-                gen.doAlgorithm(algorithms[algorithmIndex]);
-                try {
-                    String filename = String.format("%s%05d.png", groupName, (int)(Math.random() * 99999));
-                    gen.saveImage(filename);
-                } catch (IOException e) {
-                    System.err.println("Cannot save image: " + e.getMessage());
+            // An algorithm chosen with another seed would not give the same image
+            for (OutputManifest.Entry entry : previous) {
+                if (entry.seed == seed && entry.algorithm >= 0 && entry.algorithm < previousLocks.length
+                        && previousLocks[entry.algorithm] == null) {
+                    previousLocks[entry.algorithm] = entry.lockName;
                 }
-
-                algorithmIndex++;
             }
+        }
 
+        /**
+         * Choose a lock's algorithm: the one it had in the previous manifest, or else the next in the group's order
+         * that no lock of the previous manifest had, or else the next that is free
+         *
+         * @param lockName the lock that needs an algorithm
+         * @return the algorithm for the lock, or -1 if every algorithm has been used
+         */
+        int algorithmFor(String lockName) {
+            for (int algorithm = 0; algorithm < previousLocks.length; algorithm++) {
+                if (lockName.equals(previousLocks[algorithm]) && !used[algorithm]) {
+                    used[algorithm] = true;
+                    return algorithm;
+                }
+            }
+            for (int algorithm : algorithms) {
+                if (!used[algorithm] && previousLocks[algorithm] == null) {
+                    used[algorithm] = true;
+                    return algorithm;
+                }
+            }
+            // Taken from a lock of the previous manifest that has not been read yet, and may have been removed
+            for (int algorithm : algorithms) {
+                if (!used[algorithm]) {
+                    used[algorithm] = true;
+                    return algorithm;
+                }
+            }
+            return -1;
         }
     }
 }
-
-class Lock {
-    final String name;
-    final String code;
-
-    public Lock(String name, String code) {
-        this.name = name;
-        this.code = code;
-    }
-}
\ No newline at end of file
@@ -0,0 +1,402 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Generates lock images on request over HTTP, for tools that need one image at a time. The server stays running, so
+ * fonts, covers, text masks and each handler thread's GeneratorSession are already loaded when a request arrives.
+ *
+ *     GET /lock?code=1234&algorithm=0[&width=200&height=150][&seed=n]
+ *
+ * responds with the image as a png. Without a seed one is chosen at random. The seed used is sent back in the
+ * X-Lockout-Seed header, and asking again with it gives the same image.
+ *
+ *     GET /metrics
+ *
+ * responds with the Metrics summary, including the latency percentiles of the requests served so far.
+ *
+ * At most --max-concurrent images are generated at once. A request that has waited --queue-timeout milliseconds for
+ * its turn is answered with 503 instead.
+ */
+public class LockoutServer
+{
+    private final static int DEFAULT_WIDTH = 200;
+    private final static int DEFAULT_HEIGHT = 150;
+
+    /** The largest width or height that can be asked for */
+    private final static int MAX_SIZE = 4096;
+
+    /**
+     * The largest image drawn in a handler thread's session. Each thread keeps a few sessions, so larger images are
+     * drawn in a generator of their own instead of being held on to.
+     */
+    private final static int MAX_SESSION_PIXELS = 800 * 600;
+
+    /** The longest code that can be asked for */
+    private final static int MAX_CODE_LENGTH = 64;
+
+    private final HttpServer server;
+    private final ExecutorService handlers;
+    private final int threadCount;
+    private final Semaphore permits;
+    private final long queueTimeoutMillis;
+    private final PngEncoder encoder;
+
+    /**
+     * Start a server
+     *
+     * @param address the address to listen on
+     * @param threads the number of threads handling requests
+     * @param maxConcurrent the number of images generated at once
+     * @param queueTimeoutMillis how long a request waits to be generated before it is turned away
+     * @param encoder the encoder for the images
+     * @throws IOException if the address cannot be listened on
+     */
+    public LockoutServer(InetSocketAddress address, int threads, int maxConcurrent, long queueTimeoutMillis,
+                         PngEncoder encoder) throws IOException {
+        this.permits = new Semaphore(maxConcurrent, true);
+        this.queueTimeoutMillis = queueTimeoutMillis;
+        this.encoder = encoder;
+        this.threadCount = threads;
+
+        this.handlers = Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "lockout-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.server = HttpServer.create(address, 0);
+        server.createContext("/lock", this::handleLock);
+        server.createContext("/metrics", this::handleMetrics);
+        server.setExecutor(handlers);
+        server.start();
+    }
+
+    /**
+     * @return the address the server is listening on
+     */
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * Stop listening, giving requests being handled up to a second to finish
+     */
+    public void stop() {
+        server.stop(1);
+        handlers.shutdown();
+    }
+
+    /**
+     * Load what every request needs, so that the first requests are as fast as the rest. The covers are loaded at the
+     * default size, then the server is sent requests of its own over loopback until every handler thread has drawn
+     * every algorithm. These go through the same handler, encoder and thread sessions as the requests that follow.
+     *
+     * @throws IOException if a cover cannot be loaded, or the server does not answer a request
+     */
+    public void warmUp() throws IOException {
+        CoverImageCache covers = CoverImageCache.getShared();
+        for (File cover : covers.listImages()) {
+            covers.getCover(cover, DEFAULT_WIDTH, DEFAULT_HEIGHT);
+        }
+
+        InetSocketAddress address = getAddress();
+        InetAddress host = address.getAddress().isAnyLocalAddress() ? InetAddress.getLoopbackAddress()
+                : address.getAddress();
+
+        // The pool starts a new thread for each request until all of its threads are running, so the first round
+        // reaches every thread
+        for (int round = 0; round < ImageGenerator.NUM_ALGORITHMS; round++) {
+            for (int i = 0; i < threadCount; i++) {
+                int algorithm = (round + i) % ImageGenerator.NUM_ALGORITHMS;
+                URL url = new URL("http", host.getHostAddress(), address.getPort(),
+                        "/lock?code=0000&algorithm=" + algorithm + "&seed=" + i);
+                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+                try (InputStream in = connection.getInputStream()) {
+                    in.readAllBytes();
+                } finally {
+                    connection.disconnect();
+                }
+            }
+        }
+    }
+
+    private void handleLock(HttpExchange exchange) throws IOException {
+        long start = Metrics.start();
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                sendText(exchange, 405, "Only GET is supported");
+                return;
+            }
+
+            LockRequest request;
+            try {
+                request = LockRequest.parse(exchange.getRequestURI());
+            } catch (IllegalArgumentException e) {
+                sendText(exchange, 400, e.getMessage());
+                return;
+            }
+
+            if (!permits.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                Metrics.count(Metrics.Counter.REQUESTS_REJECTED, 1);
+                sendText(exchange, 503, "Too many requests, try again later");
+                return;
+            }
+
+            byte[] png;
+            try {
+                png = generate(request, encoder);
+            } catch (IOException | RuntimeException e) {
+                sendText(exchange, 500, "Could not generate the image: " + e);
+                return;
+            } finally {
+                permits.release();
+            }
+
+            exchange.getResponseHeaders().set("Content-Type", "image/png");
+            exchange.getResponseHeaders().set("X-Lockout-Seed", Long.toString(request.seed));
+            exchange.sendResponseHeaders(200, png.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(png);
+            }
+            Metrics.count(Metrics.Counter.IMAGES, 1);
+            Metrics.count(Metrics.Counter.BYTES_WRITTEN, png.length);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            sendText(exchange, 503, "The server is stopping");
+        } finally {
+            exchange.close();
+            Metrics.end(Metrics.Stage.REQUEST, start);
+        }
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        try {
+            ByteArrayOutputStream summary = new ByteArrayOutputStream();
+            try (PrintStream out = new PrintStream(summary, true, StandardCharsets.UTF_8)) {
+                Metrics.printSummary(out);
+            }
+            sendText(exchange, 200, summary.toString(StandardCharsets.UTF_8));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Generate the image a request asks for, in the calling thread's session unless the image is large
+     */
+    private static byte[] generate(LockRequest request, PngEncoder encoder) throws IOException {
+        SplittableRandom random = new SplittableRandom(request.seed);
+        ImageGenerator gen;
+        if ((long) request.width * request.height <= MAX_SESSION_PIXELS) {
+            gen = GeneratorSession.forThread(request.width, request.height, 1, 1).newGenerator(request.code, random);
+        }
+        else {
+            gen = new ImageGenerator(request.code, request.width, request.height, random);
+        }
+        gen.doAlgorithm(0, request.algorithm, null);
+
+        long start = Metrics.start();
+        ByteArrayOutputStream png = new ByteArrayOutputStream(64 * 1024);
+        gen.writeImage(png, encoder);
+        Metrics.end(Metrics.Stage.ENCODE, start);
+        return png.toByteArray();
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage());
+            System.err.println(Options.USAGE);
+            System.exit(2);
+            return;
+        }
+
+        long start = System.nanoTime();
+        LockoutServer server = new LockoutServer(new InetSocketAddress(options.host, options.port), options.threads,
+                options.maxConcurrent, options.queueTimeoutMillis, options.encoder());
+
+        // Request latency is reported at /metrics, without the warm-up requests
+        Metrics.setEnabled(true);
+        server.warmUp();
+        Metrics.reset();
+
+        System.out.printf("Warmed up in %.2fs, serving lock images at http://%s:%d/lock%n",
+                (System.nanoTime() - start) / 1e9, options.host, server.getAddress().getPort());
+    }
+
+    /**
+     * The image a request asks for
+     */
+    static class LockRequest {
+        final String code;
+        final int algorithm;
+        final int width;
+        final int height;
+        final long seed;
+
+        LockRequest(String code, int algorithm, int width, int height, long seed) {
+            this.code = code;
+            this.algorithm = algorithm;
+            this.width = width;
+            this.height = height;
+            this.seed = seed;
+        }
+
+        /**
+         * @param uri the uri of a request
+         * @return the image the request asks for
+         * @throws IllegalArgumentException if the query is missing a parameter or has a value that is out of range
+         */
+        static LockRequest parse(URI uri) {
+            Map<String, String> query = new HashMap<>();
+            if (uri.getRawQuery() != null) {
+                for (String parameter : uri.getRawQuery().split("&")) {
+                    int equals = parameter.indexOf('=');
+                    if (equals > 0) {
+                        query.put(URLDecoder.decode(parameter.substring(0, equals), StandardCharsets.UTF_8),
+                                URLDecoder.decode(parameter.substring(equals + 1), StandardCharsets.UTF_8));
+                    }
+                }
+            }
+
+            String code = query.get("code");
+            if (code == null || code.isEmpty() || code.length() > MAX_CODE_LENGTH) {
+                throw new IllegalArgumentException("code must be 1 to " + MAX_CODE_LENGTH + " characters");
+            }
+            int algorithm = number(query, "algorithm", -1, 0, ImageGenerator.NUM_ALGORITHMS - 1);
+            int width = number(query, "width", DEFAULT_WIDTH, 1, MAX_SIZE);
+            int height = number(query, "height", DEFAULT_HEIGHT, 1, MAX_SIZE);
+
+            long seed;
+            try {
+                seed = query.containsKey("seed") ? Long.parseLong(query.get("seed"))
+                        : ThreadLocalRandom.current().nextLong();
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("seed must be a whole number");
+            }
+
+            return new LockRequest(code, algorithm, width, height, seed);
+        }
+
+        /**
+         * @param missing the value when the parameter is not given, or -1 if it must be given
+         */
+        private static int number(Map<String, String> query, String name, int missing, int min, int max) {
+            String value = query.get(name);
+            if (value == null && missing >= 0) {
+                return missing;
+            }
+            try {
+                int number = Integer.parseInt(value);
+                if (number >= min && number <= max) {
+                    return number;
+                }
+            } catch (NumberFormatException e) {
+                // Reported below
+            }
+            throw new IllegalArgumentException(name + " must be " + min + ".." + max);
+        }
+    }
+
+    /**
+     * The settings of the server, read from the command line
+     */
+    static class Options {
+        static final String USAGE = "Usage: LockoutServer [--host address] [--port n] [--threads n]\n"
+                + "           [--max-concurrent n] [--queue-timeout ms] [--png-level 0-9]";
+
+        String host = "127.0.0.1";
+        int port = 8080;
+        int maxConcurrent = Runtime.getRuntime().availableProcessors();
+        int threads = maxConcurrent * 4;
+        long queueTimeoutMillis = 1000;
+        int pngLevel = Deflater.BEST_SPEED;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--host":
+                        options.host = value(args, ++i);
+                        break;
+                    case "--port":
+                        options.port = Integer.parseInt(value(args, ++i));
+                        break;
+                    case "--threads":
+                        options.threads = positiveInt(args, ++i);
+                        break;
+                    case "--max-concurrent":
+                        options.maxConcurrent = positiveInt(args, ++i);
+                        break;
+                    case "--queue-timeout":
+                        options.queueTimeoutMillis = Long.parseLong(value(args, ++i));
+                        break;
+                    case "--png-level":
+                        options.pngLevel = Integer.parseInt(value(args, ++i));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+
+            // Checks the png settings while the usage message can still be shown
+            options.encoder();
+
+            return options;
+        }
+
+        PngEncoder encoder() {
+            return new PngEncoder(pngLevel, true, true, false);
+        }
+
+        private static int positiveInt(String[] args, int i) {
+            int count = Integer.parseInt(value(args, i));
+            if (count < 1) {
+                throw new IllegalArgumentException(args[i - 1] + " must be at least 1");
+            }
+            return count;
+        }
+
+        private static String value(String[] args, int i) {
+            if (i >= args.length) {
+                throw new IllegalArgumentException(args[i - 1] + " needs a value");
+            }
+            return args[i];
+        }
+    }
+}
@@ -0,0 +1,331 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import java.io.PrintStream;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timing and counting of each stage of generating lock images. Metrics are off unless the lockout.metrics system
+ * property is true or they are turned on with setEnabled, and cost a single field read per stage while off.
+ *
+ * Each stage is timed like this:
+ *
+ *     long start = Metrics.start();
+ *     ...
+ *     Metrics.end(Metrics.Stage.DRAW_TEXT, start);
+ *
+ * The times of each stage are kept in a histogram for the summary report, and each one is also recorded as a
+ * lockout.Stage JFR event when a flight recording is running, so a slow stage can be found in JDK Mission Control.
+ */
+public class Metrics
+{
+    /**
+     * The stages of generating a lock image
+     */
+    public enum Stage {
+        PARSE("lock parsing"),
+        COVER_LOAD("cover load/decode"),
+        SCALE("getImageToFit scaling"),
+        DRAW_TEXT("drawText"),
+        ALGORITHM_RED("algorithm 0 red"),
+        ALGORITHM_GREEN("algorithm 1 green"),
+        ALGORITHM_BLUE("algorithm 2 blue"),
+        ALGORITHM_STATIC("algorithm 3 static"),
+        ALGORITHM_GRADIENT("algorithm 4 gradient"),
+        ALGORITHM_BINARY("algorithm 5 binary"),
+        ENCODE("png encode"),
+        WRITE("file write"),
+        REQUEST("http request");
+
+        final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+
+        /**
+         * @param num an algorithm number [0..ImageGenerator.NUM_ALGORITHMS)
+         * @return the stage of that algorithm
+         */
+        public static Stage algorithm(int num) {
+            return values()[ALGORITHM_RED.ordinal() + num];
+        }
+    }
+
+    /**
+     * The things counted while generating lock images
+     */
+    public enum Counter {
+        IMAGES("images written"),
+        BYTES_WRITTEN("bytes written"),
+        COVER_HITS("cover cache hits"),
+        COVER_MISSES("cover cache misses"),
+        COVER_ATLAS_HITS("cover atlas hits"),
+        TEXT_MASK_HITS("text mask cache hits"),
+        TEXT_MASK_MISSES("text mask cache misses"),
+        REQUESTS_REJECTED("http requests rejected");
+
+        final String label;
+
+        Counter(String label) {
+            this.label = label;
+        }
+    }
+
+    private static volatile boolean enabled = Boolean.getBoolean("lockout.metrics");
+
+    private final static Map<Stage, Histogram> histograms = new EnumMap<>(Stage.class);
+    private final static Map<Counter, LongAdder> counters = new EnumMap<>(Counter.class);
+    private static volatile long startNanos = System.nanoTime();
+
+    static {
+        for (Stage stage : Stage.values()) {
+            histograms.put(stage, new Histogram());
+        }
+        for (Counter counter : Counter.values()) {
+            counters.put(counter, new LongAdder());
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * @return true if metrics are being recorded
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turn recording on or off
+     *
+     * @param on true to record metrics
+     */
+    public static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    /**
+     * Forget everything recorded so far, starting a new run
+     */
+    public static void reset() {
+        for (Histogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+        for (LongAdder counter : counters.values()) {
+            counter.reset();
+        }
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * @return the time a stage starts, to give to end, or 0 if metrics are off
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record the time taken by a stage
+     *
+     * @param stage the stage that has finished
+     * @param start the time returned by start when the stage began
+     */
+    public static void end(Stage stage, long start) {
+        if (!enabled) {
+            return;
+        }
+
+        long nanos = System.nanoTime() - start;
+        histograms.get(stage).record(nanos);
+
+        StageEvent event = new StageEvent();
+        if (event.shouldCommit()) {
+            event.stage = stage.label;
+            event.elapsed = nanos;
+            event.commit();
+        }
+    }
+
+    /**
+     * Add to a counter
+     *
+     * @param counter the counter to add to
+     * @param amount the amount to add
+     */
+    public static void count(Counter counter, long amount) {
+        if (enabled) {
+            counters.get(counter).add(amount);
+        }
+    }
+
+    /**
+     * @param counter a counter
+     * @return the counter's total since the last reset
+     */
+    public static long get(Counter counter) {
+        return counters.get(counter).sum();
+    }
+
+    /**
+     * Print the time taken by each stage and the counters since the last reset, and record them as a lockout.Run JFR
+     * event
+     *
+     * @param out the stream to print to
+     */
+    public static void printSummary(PrintStream out) {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        long images = get(Counter.IMAGES);
+        long bytes = get(Counter.BYTES_WRITTEN);
+
+        out.printf("%-24s %8s %10s %10s %10s %10s %10s %10s%n",
+                "Stage", "count", "total ms", "mean us", "p50 us", "p90 us", "p99 us", "max us");
+        for (Stage stage : Stage.values()) {
+            Histogram histogram = histograms.get(stage);
+            long count = histogram.count.sum();
+            if (count == 0) {
+                continue;
+            }
+            long total = histogram.total.sum();
+            out.printf("%-24s %8d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f%n", stage.label, count, total / 1e6,
+                    total / 1e3 / count, histogram.percentile(0.5) / 1e3, histogram.percentile(0.9) / 1e3,
+                    histogram.percentile(0.99) / 1e3, histogram.max.get() / 1e3);
+        }
+
+        for (Counter counter : Counter.values()) {
+            out.printf("%-24s %d%n", counter.label, get(counter));
+        }
+        out.printf("%d images in %.2fs, %.1f images/s, %.2f MB/s written%n", images, seconds, images / seconds,
+                bytes / seconds / (1024 * 1024));
+
+        RunEvent event = new RunEvent();
+        if (event.shouldCommit()) {
+            event.images = images;
+            event.bytesWritten = bytes;
+            event.coverHits = get(Counter.COVER_HITS);
+            event.coverMisses = get(Counter.COVER_MISSES);
+            event.textMaskHits = get(Counter.TEXT_MASK_HITS);
+            event.textMaskMisses = get(Counter.TEXT_MASK_MISSES);
+            event.elapsed = System.nanoTime() - startNanos;
+            event.commit();
+        }
+    }
+
+    /**
+     * A histogram of durations in nanoseconds. Each power of two is split into four buckets, so percentiles are
+     * within 25% of the true value.
+     */
+    static class Histogram {
+        private final static int SUB_BUCKETS = 4;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+        final LongAdder count = new LongAdder();
+        final LongAdder total = new LongAdder();
+        final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long nanos) {
+            nanos = Math.max(0, nanos);
+            buckets.incrementAndGet(bucket(nanos));
+            count.increment();
+            total.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        void reset() {
+            for (int i = 0; i < buckets.length(); i++) {
+                buckets.set(i, 0);
+            }
+            count.reset();
+            total.reset();
+            max.reset();
+        }
+
+        /**
+         * @param fraction the fraction of durations that are no longer than the result, in [0..1]
+         * @return the upper bound of the bucket holding that percentile, in nanoseconds
+         */
+        long percentile(double fraction) {
+            long target = (long) Math.ceil(count.sum() * fraction);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= target && seen > 0) {
+                    return Math.min(upperBound(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        static int bucket(long nanos) {
+            if (nanos < SUB_BUCKETS) {
+                return (int) nanos;
+            }
+            int highBit = 63 - Long.numberOfLeadingZeros(nanos);
+            return (highBit - 1) * SUB_BUCKETS + (int) ((nanos >>> (highBit - 2)) & (SUB_BUCKETS - 1));
+        }
+
+        static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int highBit = bucket / SUB_BUCKETS + 1;
+            long sub = bucket % SUB_BUCKETS;
+            return ((SUB_BUCKETS + sub + 1) << (highBit - 2)) - 1;
+        }
+    }
+
+    @Name("lockout.Stage")
+    @Label("Lockout Stage")
+    @Category("Lockout")
+    @Description("One stage of generating a lock image")
+    @StackTrace(false)
+    static class StageEvent extends Event {
+        @Label("Stage")
+        String stage;
+
+        @Label("Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long elapsed;
+    }
+
+    @Name("lockout.Run")
+    @Label("Lockout Run")
+    @Category("Lockout")
+    @Description("The totals of a LockoutMaker run")
+    @StackTrace(false)
+    static class RunEvent extends Event {
+        @Label("Images")
+        long images;
+
+        @Label("Bytes Written")
+        @DataAmount
+        long bytesWritten;
+
+        @Label("Cover Cache Hits")
+        long coverHits;
+
+        @Label("Cover Cache Misses")
+        long coverMisses;
+
+        @Label("Text Mask Cache Hits")
+        long textMaskHits;
+
+        @Label("Text Mask Cache Misses")
+        long textMaskMisses;
+
+        @Label("Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long elapsed;
+    }
+}
@@ -0,0 +1,357 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * Records the image LockoutMaker generated for each lock, along with everything the image was generated from: the
+ * lock's name and code, the algorithm, the cover image, the payload format, the generator and the seed. A lock whose
+ * inputs match its entry, and whose image is still in place with the SHA-256 hash it was written with, does not need
+ * to be generated again. The image is only hashed again once its size or modification time has changed.
+ *
+ * The manifest is a tab separated file with a header row and one lock per row. Each shard of a sharded run writes a
+ * partial manifest of its own locks, and the partial manifests are merged into one once every shard has finished.
+ */
+public class OutputManifest
+{
+    /** The name of the manifest in the output directory */
+    public final static String FILE_NAME = "lockout-manifest.tsv";
+
+    /**
+     * @param shard the index of a shard, from 0
+     * @param shardCount the number of shards the run is split into
+     * @return the name of the partial manifest the shard writes in the output directory
+     */
+    public static String shardFileName(int shard, int shardCount) {
+        return "lockout-manifest.shard-" + shard + "-of-" + shardCount + ".tsv";
+    }
+
+    /** The cover of an entry whose algorithm does not use one */
+    public final static String NO_COVER = "-";
+
+    /** The payload format of an entry whose algorithm does not store one */
+    public final static String NO_PAYLOAD = "-";
+
+    /** The generator of entries written before it was recorded, which never matches a current generator */
+    public final static String UNKNOWN_GENERATOR = "1";
+
+    /**
+     * @param version the version of the generator
+     * @param renderer the renderer that draws the lock's text, from TextMask.rendererFor
+     * @return the generator of an entry
+     */
+    public static String generatorKey(int version, String renderer) {
+        return version + "/" + renderer;
+    }
+
+    private final static List<String> COLUMNS = List.of("lock", "code", "algorithm", "cover", "payload", "generator",
+            "seed", "file", "size", "modified", "sha256");
+
+    /**
+     * The columns that older manifests may leave out. Every payload was legacy before the payload column existed,
+     * an entry without a generator was made by an older generator than any current one, and an image without a
+     * modification time is always hashed.
+     */
+    private final static List<String> ADDED_COLUMNS = List.of("payload", "generator", "modified");
+
+    /** The modification time of an entry whose image's modification time was not recorded */
+    public final static long UNKNOWN_MODIFIED = -1;
+
+    /** The entries by lock name, kept sorted so that the same locks always give the same file */
+    private final Map<String, Entry> entries = new TreeMap<>();
+
+    /**
+     * Read a manifest
+     *
+     * @param path the manifest file
+     * @return the manifest, which is empty if the file does not exist
+     * @throws IOException if the file cannot be read or is not a manifest
+     */
+    public static OutputManifest read(Path path) throws IOException {
+        OutputManifest manifest = new OutputManifest();
+
+        try (BufferedReader reader = Files.newBufferedReader(path)) {
+            String line = reader.readLine();
+            List<String> header = line == null ? List.of() : List.of(line.split("\t", -1));
+            List<String> expected = new ArrayList<>(COLUMNS);
+            expected.removeIf(column -> ADDED_COLUMNS.contains(column) && !header.contains(column));
+            if (!header.equals(expected)) {
+                throw new IOException(path + " is not a lockout manifest");
+            }
+            int columns = header.size();
+
+            int lineNumber = 1;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty()) {
+                    continue;
+                }
+
+                String[] parts = line.split("\t", -1);
+                if (parts.length != columns) {
+                    throw new IOException(path + " line " + lineNumber + ": expected " + columns
+                            + " columns but found " + parts.length);
+                }
+                try {
+                    int algorithm = Integer.parseInt(parts[header.indexOf("algorithm")]);
+                    String payload = header.contains("payload") ? parts[header.indexOf("payload")]
+                            : payloadKey(algorithm, PayloadCodec.LEGACY);
+                    String generator = header.contains("generator") ? parts[header.indexOf("generator")]
+                            : UNKNOWN_GENERATOR;
+                    long modified = header.contains("modified") ? Long.parseLong(parts[header.indexOf("modified")])
+                            : UNKNOWN_MODIFIED;
+                    manifest.put(new Entry(parts[0], parts[1], algorithm, parts[header.indexOf("cover")], payload,
+                            generator, Long.parseLong(parts[header.indexOf("seed")]), parts[header.indexOf("file")],
+                            Long.parseLong(parts[header.indexOf("size")]), modified, parts[header.indexOf("sha256")]));
+                } catch (NumberFormatException e) {
+                    throw new IOException(path + " line " + lineNumber + ": " + e.getMessage(), e);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return manifest;
+        }
+
+        return manifest;
+    }
+
+    /**
+     * Write the manifest, replacing the file only once it has been completely written
+     *
+     * @param path the manifest file
+     * @throws IOException if the file cannot be written
+     */
+    public synchronized void write(Path path) throws IOException {
+        Path absolute = path.toAbsolutePath();
+        Path temp = absolute.resolveSibling(absolute.getFileName() + ".tmp");
+
+        try (BufferedWriter writer = Files.newBufferedWriter(temp)) {
+            writer.write(String.join("\t", COLUMNS));
+            writer.newLine();
+            for (Entry entry : entries.values()) {
+                writer.write(entry.lockName + "\t" + entry.code + "\t" + entry.algorithm + "\t" + entry.cover + "\t"
+                        + entry.payload + "\t" + entry.generator + "\t" + entry.seed + "\t" + entry.file + "\t"
+                        + entry.size + "\t" + entry.modified + "\t" + entry.sha256);
+                writer.newLine();
+            }
+        }
+
+        Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param lockName the name of a lock
+     * @return the lock's entry, or null if it has none
+     */
+    public synchronized Entry get(String lockName) {
+        return entries.get(lockName);
+    }
+
+    /**
+     * Add an entry, replacing any entry for the same lock
+     *
+     * @param entry the entry to add
+     */
+    public synchronized void put(Entry entry) {
+        entries.put(entry.lockName, entry);
+    }
+
+    /**
+     * @return a copy of every entry, in order of lock name
+     */
+    public synchronized Collection<Entry> getEntries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * @return the number of entries
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the seed of the first entry, or null if the manifest is empty
+     */
+    public synchronized Long getSeed() {
+        for (Entry entry : entries.values()) {
+            return entry.seed;
+        }
+        return null;
+    }
+
+    /**
+     * @param data the bytes of a file
+     * @return the SHA-256 hash of the bytes, in hex
+     */
+    public static String sha256(byte[] data) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Describe a cover image in a way that changes whenever the image does
+     *
+     * @param cover the cover image file, or null if there is no cover
+     * @return the cover's name, size and modification time
+     */
+    public static String coverKey(File cover) {
+        if (cover == null) {
+            return NO_COVER;
+        }
+        return cover.getName() + ":" + cover.length() + ":" + cover.lastModified();
+    }
+
+    /**
+     * Describe the payload format of an image, for the algorithms that store one
+     *
+     * @param algorithm the algorithm the image was generated with
+     * @param codec the payload format it was generated with
+     * @return the format, or NO_PAYLOAD if the algorithm does not store one
+     */
+    public static String payloadKey(int algorithm, PayloadCodec codec) {
+        return ImageGenerator.usesPayload(algorithm) ? codec.toString() : NO_PAYLOAD;
+    }
+
+    /**
+     * The image generated for one lock
+     */
+    public static class Entry {
+        final String lockName;
+        final String code;
+        final int algorithm;
+        final String cover;
+        final String payload;
+
+        /**
+         * The version of the generator, which changes whenever the same inputs would give a different image, and the
+         * renderer that drew the text
+         */
+        final String generator;
+        final long seed;
+
+        final String file;
+        final long size;
+
+        /** The modification time of the image once written, in milliseconds, or UNKNOWN_MODIFIED */
+        final long modified;
+        final String sha256;
+
+        Entry(String lockName, String code, int algorithm, String cover, String payload, String generator, long seed,
+              String file, long size, long modified, String sha256) {
+            this.lockName = lockName;
+            this.code = code;
+            this.algorithm = algorithm;
+            this.cover = cover;
+            this.payload = payload;
+            this.generator = generator;
+            this.seed = seed;
+            this.file = file;
+            this.size = size;
+            this.modified = modified;
+            this.sha256 = sha256;
+        }
+
+        /**
+         * @return the renderer that drew the entry's text, or null if the manifest was written before it was recorded
+         */
+        String renderer() {
+            int slash = generator.indexOf('/');
+            return slash >= 0 ? generator.substring(slash + 1) : null;
+        }
+
+        /**
+         * @return true if the entry's image was generated from the given inputs
+         */
+        boolean hasInputs(String code, int algorithm, String cover, String payload, String generator, long seed) {
+            return this.code.equals(code) && this.algorithm == algorithm && this.cover.equals(cover)
+                    && this.payload.equals(payload) && this.generator.equals(generator) && this.seed == seed;
+        }
+
+        /**
+         * @param dir the output directory
+         * @return true if the entry's image is in the directory with the size it was written with
+         */
+        boolean outputExists(Path dir) {
+            Path path = dir.resolve(file);
+            try {
+                return Files.isRegularFile(path) && Files.size(path) == size;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Check the entry's image as cheaply as its contents allow. An image whose size and modification time are
+         * as they were written is taken to be unchanged; any other image of the right size is hashed.
+         *
+         * @param dir the output directory
+         * @return true if the entry's image is in the directory with the contents it was written with
+         */
+        boolean outputCurrent(Path dir) {
+            try {
+                return outputExists(dir) && (modified != UNKNOWN_MODIFIED
+                        && Files.getLastModifiedTime(dir.resolve(file)).toMillis() == modified
+                        || outputMatches(dir));
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /**
+         * @param dir the output directory
+         * @return the entry, with the modification time of its image if it had none recorded
+         * @throws IOException if the image's modification time cannot be read
+         */
+        Entry withModified(Path dir) throws IOException {
+            if (modified != UNKNOWN_MODIFIED) {
+                return this;
+            }
+            return new Entry(lockName, code, algorithm, cover, payload, generator, seed, file, size,
+                    Files.getLastModifiedTime(dir.resolve(file)).toMillis(), sha256);
+        }
+
+        /**
+         * @param dir the output directory
+         * @return true if the entry's image is in the directory with exactly the contents it was written with
+         */
+        boolean outputMatches(Path dir) {
+            try {
+                return outputExists(dir) && sha256(Files.readAllBytes(dir.resolve(file))).equals(sha256);
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry other = (Entry) o;
+            return lockName.equals(other.lockName) && other.hasInputs(code, algorithm, cover, payload, generator, seed)
+                    && file.equals(other.file) && size == other.size && modified == other.modified
+                    && sha256.equals(other.sha256);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(lockName, code, algorithm, cover, payload, generator, seed, file);
+        }
+    }
+}
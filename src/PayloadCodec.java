@@ -0,0 +1,360 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * How hideBinaryData stores text in the low bits of a picture's color channels. The text is encoded as UTF-8 and
+ * packed into a stream of bits before any pixel is touched, and only the pixels the stream needs are changed, from the
+ * top left of the slot along each row.
+ *
+ * There are two formats:
+ *
+ * - legacy: the bytes followed by a zero byte, one bit per pixel in the least significant bit of the red channel, most
+ *   significant bit first. Every image made before the framed format existed uses it, and it is still the default.
+ * - framed: a two byte preamble stored like the legacy format, giving the channels and the number of low bits of each
+ *   that hold the rest. The rest is the length of the text as four bytes, the text, and optionally a CRC-32 of the
+ *   text. Each of these bytes is stored least significant bit first, filling the low bits of the red, green and blue
+ *   channels chosen in that order before moving on to the next pixel.
+ *
+ * The first byte of the preamble can never start UTF-8 text, so a reader can tell the formats apart.
+ */
+public class PayloadCodec
+{
+    /** The format of images made before the framed format existed */
+    public final static PayloadCodec LEGACY = new PayloadCodec(1, new ImageGenerator.Channel[]{
+            ImageGenerator.Channel.RED}, false, false);
+
+    /** The first byte of a framed payload, which is never a byte of UTF-8 text */
+    private final static int MARKER = 0xc0;
+
+    /** The pixels holding the preamble of a framed payload */
+    private final static int PREAMBLE_PIXELS = 16;
+
+    /** The bytes of a framed payload's length, and of its checksum */
+    private final static int LENGTH_BYTES = 4;
+    private final static int CHECKSUM_BYTES = 4;
+
+    /** The most bytes of legacy text read back, as the end of legacy text can only be found by reading it */
+    private final static int MAX_LEGACY_BYTES = 4096;
+
+    private final int bitsPerChannel;
+
+    /** The channels holding the bits, in the order they are filled */
+    private final ImageGenerator.Channel[] channels;
+
+    private final boolean checksum;
+    private final boolean framed;
+
+    private PayloadCodec(int bitsPerChannel, ImageGenerator.Channel[] channels, boolean checksum, boolean framed) {
+        this.bitsPerChannel = bitsPerChannel;
+        this.channels = channels;
+        this.checksum = checksum;
+        this.framed = framed;
+    }
+
+    /**
+     * A framed format
+     *
+     * @param bitsPerChannel the number of low bits of each channel to store the text in, from 1 to 8
+     * @param checksum true to store a CRC-32 of the text after it
+     * @param channels the channels to store the text in, at least one
+     */
+    public PayloadCodec(int bitsPerChannel, boolean checksum, ImageGenerator.Channel... channels) {
+        this(bitsPerChannel, sorted(channels), checksum, true);
+        if (bitsPerChannel < 1 || bitsPerChannel > 8) {
+            throw new IllegalArgumentException("bits per channel must be from 1 to 8, not " + bitsPerChannel);
+        }
+    }
+
+    private static ImageGenerator.Channel[] sorted(ImageGenerator.Channel[] channels) {
+        ImageGenerator.Channel[] sorted = Arrays.stream(channels).distinct().sorted()
+                .toArray(ImageGenerator.Channel[]::new);
+        if (sorted.length == 0) {
+            throw new IllegalArgumentException("a payload needs at least one channel");
+        }
+        return sorted;
+    }
+
+    /**
+     * Read a format as written by toString: "legacy", or the bits per channel and the channels, such as "2:rgb", with
+     * ":crc" on the end for a checksum
+     *
+     * @param format the format
+     * @return the codec for the format
+     * @throws IllegalArgumentException if the format cannot be read
+     */
+    public static PayloadCodec parse(String format) {
+        if (format.equals("legacy")) {
+            return LEGACY;
+        }
+
+        String[] parts = format.split(":");
+        if (parts.length < 2 || parts.length > 3 || (parts.length == 3 && !parts[2].equals("crc"))) {
+            throw new IllegalArgumentException(
+                    "payload format must be legacy or bits:channels[:crc], such as 2:rgb:crc");
+        }
+
+        ImageGenerator.Channel[] channels = new ImageGenerator.Channel[parts[1].length()];
+        for (int i = 0; i < channels.length; i++) {
+            switch (parts[1].charAt(i)) {
+                case 'r':
+                    channels[i] = ImageGenerator.Channel.RED;
+                    break;
+                case 'g':
+                    channels[i] = ImageGenerator.Channel.GREEN;
+                    break;
+                case 'b':
+                    channels[i] = ImageGenerator.Channel.BLUE;
+                    break;
+                default:
+                    throw new IllegalArgumentException("payload channels must be some of r, g and b, not " + parts[1]);
+            }
+        }
+        return new PayloadCodec(Integer.parseInt(parts[0]), parts.length == 3, channels);
+    }
+
+    /**
+     * @return the number of bits stored in each pixel after the preamble
+     */
+    private int bitsPerPixel() {
+        return bitsPerChannel * channels.length;
+    }
+
+    /**
+     * Encode text and pack it into the bits to store
+     *
+     * @param text the text to store
+     * @param pixels the number of pixels there is room for
+     * @return the packed bits
+     * @throws IllegalArgumentException if framed text does not fit in the pixels. Legacy text is cut short instead,
+     *                                  as it always has been.
+     */
+    public Payload pack(String text, int pixels) {
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer stream;
+        if (framed) {
+            stream = ByteBuffer.allocate(LENGTH_BYTES + utf8.length + (checksum ? CHECKSUM_BYTES : 0));
+            stream.putInt(utf8.length).put(utf8);
+            if (checksum) {
+                stream.putInt(crc(utf8));
+            }
+        }
+        else {
+            // Reversing the bits of each byte stores it most significant bit first
+            stream = ByteBuffer.allocate(utf8.length + 1);
+            for (byte b : utf8) {
+                stream.put((byte) (Integer.reverse(b) >>> 24));
+            }
+            stream.put((byte) 0);
+        }
+
+        long bitCount = (long) stream.capacity() * 8;
+        long needed = (framed ? PREAMBLE_PIXELS : 0) + (bitCount + bitsPerPixel() - 1) / bitsPerPixel();
+        if (needed > pixels && framed) {
+            throw new IllegalArgumentException("a payload of " + utf8.length + " bytes needs " + needed
+                    + " pixels but there are only " + pixels);
+        }
+
+        // One word more than the bits fill, so that any bits can be taken without checking for the end
+        long[] bits = new long[(int) ((bitCount + 63) >>> 6) + 1];
+        stream.flip();
+        for (int i = 0; stream.remaining() > 0; i++) {
+            bits[i >>> 3] |= (stream.get() & 0xffL) << ((i & 7) * 8);
+        }
+        return new Payload(bits, (int) Math.min(needed, pixels));
+    }
+
+    /**
+     * @return the preamble of the framed format, the marker followed by the bits per channel, channels and checksum
+     */
+    private int preamble() {
+        int channelFlags = 0;
+        for (ImageGenerator.Channel channel : channels) {
+            channelFlags |= 1 << channel.ordinal();
+        }
+        return (MARKER << 8) | (checksum ? 0x40 : 0) | (channelFlags << 3) | (bitsPerChannel - 1);
+    }
+
+    /**
+     * Read back text stored in either format
+     *
+     * @param argb the pixels of the slot the text was stored in, row by row
+     * @return the bytes of the text, or null if the pixels hold framed text whose length does not fit or whose
+     *         checksum does not match
+     */
+    public static byte[] read(int[] argb) {
+        int first = legacyByte(argb, 0);
+        if (first != MARKER || argb.length < PREAMBLE_PIXELS) {
+            byte[] text = new byte[Math.min(argb.length / 8, MAX_LEGACY_BYTES)];
+            int length = 0;
+            for (int value = first; length < text.length && value != 0; value = legacyByte(argb, ++length)) {
+                text[length] = (byte) value;
+            }
+            return Arrays.copyOf(text, length);
+        }
+
+        int format = legacyByte(argb, 1);
+        if ((format & 0x80) != 0 || (format & 0x38) == 0) {
+            return null;
+        }
+        ImageGenerator.Channel[] channels = Arrays.stream(ImageGenerator.Channel.values())
+                .filter(channel -> (format & (8 << channel.ordinal())) != 0)
+                .toArray(ImageGenerator.Channel[]::new);
+        PayloadCodec codec = new PayloadCodec((format & 7) + 1, channels, (format & 0x40) != 0, true);
+
+        FramedReader reader = codec.new FramedReader(argb);
+        long room = (long) (argb.length - PREAMBLE_PIXELS) * codec.bitsPerPixel() / 8 - LENGTH_BYTES
+                - (codec.checksum ? CHECKSUM_BYTES : 0);
+        int length = reader.readInt();
+        if (length < 0 || length > room) {
+            return null;
+        }
+
+        byte[] text = new byte[length];
+        for (int i = 0; i < length; i++) {
+            text[i] = (byte) reader.readByte();
+        }
+        if (codec.checksum && reader.readInt() != crc(text)) {
+            return null;
+        }
+        return text;
+    }
+
+    /**
+     * @return the byte stored most significant bit first in the red channel of pixels index * 8 to index * 8 + 7, or
+     *         0 if the pixels run out
+     */
+    private static int legacyByte(int[] argb, int index) {
+        if (index * 8 + 8 > argb.length) {
+            return 0;
+        }
+        int value = 0;
+        for (int bit = 0; bit < 8; bit++) {
+            value = (value << 1) | ((argb[index * 8 + bit] >> 16) & 1);
+        }
+        return value;
+    }
+
+    private static int crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public String toString() {
+        if (!framed) {
+            return "legacy";
+        }
+        StringBuilder format = new StringBuilder().append(bitsPerChannel).append(':');
+        for (ImageGenerator.Channel channel : channels) {
+            format.append(Character.toLowerCase(channel.name().charAt(0)));
+        }
+        return checksum ? format.append(":crc").toString() : format.toString();
+    }
+
+    /**
+     * Text packed into bits, ready to be stored in any rows of a slot in any order
+     */
+    public class Payload {
+        /** The bits after the preamble, bit (i & 63) of word (i >>> 6) being bit i */
+        private final long[] bits;
+
+        /** The number of pixels holding the payload, from the top left of the slot */
+        final int pixelCount;
+
+        private Payload(long[] bits, int pixelCount) {
+            this.bits = bits;
+            this.pixelCount = pixelCount;
+        }
+
+        /**
+         * Store the payload's bits in some of its pixels, leaving the rest of each pixel as it is
+         *
+         * @param argb the pixels to store into
+         * @param index the first pixel to store into
+         * @param pixel the number of the first pixel in the slot, counting along each row from the top left
+         * @param count the number of pixels, which must all be below pixelCount
+         */
+        void write(int[] argb, int index, int pixel, int count) {
+            int start = framed ? PREAMBLE_PIXELS : 0;
+            int perPixel = bitsPerPixel();
+            int channelMask = (1 << bitsPerChannel) - 1;
+            int preamble = framed ? preamble() : 0;
+
+            for (int i = 0; i < count; i++, pixel++) {
+                int rgb = argb[index + i];
+                if (pixel < start) {
+                    int bit = (preamble >>> (PREAMBLE_PIXELS - 1 - pixel)) & 1;
+                    argb[index + i] = (rgb & ~(1 << 16)) | (bit << 16);
+                    continue;
+                }
+
+                int value = bitsAt((long) (pixel - start) * perPixel, perPixel);
+                for (ImageGenerator.Channel channel : channels) {
+                    rgb = (rgb & ~(channelMask << channel.shift)) | ((value & channelMask) << channel.shift);
+                    value >>>= bitsPerChannel;
+                }
+                argb[index + i] = rgb;
+            }
+        }
+
+        /**
+         * @return count bits, at most 24, starting at bit index, the first in the lowest bit
+         */
+        private int bitsAt(long index, int count) {
+            int word = (int) (index >>> 6);
+            int offset = (int) (index & 63);
+            long value = bits[word] >>> offset;
+            if (offset + count > 64) {
+                value |= bits[word + 1] << (64 - offset);
+            }
+            return (int) value & ((1 << count) - 1);
+        }
+    }
+
+    /**
+     * Reads the bytes after the preamble of a framed payload, in order
+     */
+    private class FramedReader {
+        private final int[] argb;
+        private int pixel = PREAMBLE_PIXELS;
+
+        /** Bits read from pixels but not yet returned, the next in the lowest bit */
+        private long pending;
+        private int pendingCount;
+
+        FramedReader(int[] argb) {
+            this.argb = argb;
+        }
+
+        int readByte() {
+            while (pendingCount < 8) {
+                if (pixel == argb.length) {
+                    // Past the end of the slot, where nothing was stored
+                    pendingCount += bitsPerPixel();
+                    continue;
+                }
+                int rgb = argb[pixel++];
+                for (ImageGenerator.Channel channel : channels) {
+                    pending |= (long) ((rgb >>> channel.shift) & ((1 << bitsPerChannel) - 1)) << pendingCount;
+                    pendingCount += bitsPerChannel;
+                }
+            }
+            int value = (int) pending & 0xff;
+            pending >>>= 8;
+            pendingCount -= 8;
+            return value;
+        }
+
+        int readInt() {
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                value = (value << 8) | readByte();
+            }
+            return value;
+        }
+    }
+}
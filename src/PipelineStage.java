@@ -0,0 +1,146 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One stage of a pipeline: a fixed number of threads taking items from a bounded queue. Putting an item into a full
+ * queue waits until the stage catches up, so a slow stage holds back the stages before it instead of letting items
+ * pile up in memory. Each stage hands its finished items on by putting them into the next stage.
+ *
+ * @param <T> the type of item the stage works on
+ */
+public class PipelineStage<T>
+{
+    /**
+     * The work a stage does to each item
+     */
+    public interface Worker<T> {
+        void process(T item) throws Exception;
+    }
+
+    /**
+     * Told about each item whose work failed. The item goes no further through the pipeline.
+     */
+    public interface FailureHandler<T> {
+        void failed(T item, Throwable failure);
+    }
+
+    /** Put into the queue when there are no more items, and passed on by each thread that takes it */
+    private final static Object END = new Object();
+
+    private final String name;
+    private final BlockingQueue<Object> queue;
+    private final List<Thread> threads = new ArrayList<>();
+
+    /** The failures whose handler itself threw, with what it threw added as suppressed */
+    private final Queue<Throwable> unhandled = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Start a stage's threads
+     *
+     * @param name the name of the stage, which its threads are named after
+     * @param threadCount the number of items worked on at once
+     * @param capacity the number of items that can wait for a thread
+     * @param worker the work to do to each item
+     * @param failureHandler told about each item whose work throws
+     */
+    public PipelineStage(String name, int threadCount, int capacity, Worker<T> worker,
+                         FailureHandler<T> failureHandler) {
+        if (threadCount < 1 || capacity < 1) {
+            throw new IllegalArgumentException("a stage needs at least one thread and room for one item");
+        }
+
+        this.name = name;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread(() -> run(worker, failureHandler), name + "-" + (i + 1));
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void run(Worker<T> worker, FailureHandler<T> failureHandler) {
+        boolean ended = false;
+        try {
+            while (true) {
+                Object item = queue.take();
+                if (item == END) {
+                    ended = true;
+                    return;
+                }
+
+                try {
+                    worker.process((T) item);
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception | Error e) {
+                    try {
+                        failureHandler.failed((T) item, e);
+                    } catch (RuntimeException | Error handlerFailure) {
+                        // The thread carries on, or finish would wait for it forever
+                        e.addSuppressed(handlerFailure);
+                        unhandled.add(e);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // Abandoned
+        }
+        finally {
+            if (ended) {
+                // There is room, as this thread has just taken the marker
+                queue.offer(END);
+            }
+        }
+    }
+
+    /**
+     * Hand an item to the stage, waiting while its queue is full
+     *
+     * @param item the item to work on
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void put(T item) throws InterruptedException {
+        queue.put(item);
+    }
+
+    /**
+     * Wait for the stage to work on every item it has been given, and stop its threads. Nothing can be put into the
+     * stage afterwards.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void finish() throws InterruptedException {
+        queue.put(END);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    /**
+     * @return a description of each failure whose failure handler threw, so that the item was not handled
+     */
+    public List<String> getUnhandledFailures() {
+        List<String> descriptions = new ArrayList<>();
+        for (Throwable failure : unhandled) {
+            descriptions.add(name + " stage: " + failure + ", and handling it failed with "
+                    + failure.getSuppressed()[failure.getSuppressed().length - 1]);
+        }
+        return descriptions;
+    }
+
+    /**
+     * Stop the stage's threads without waiting for the items in its queue
+     */
+    public void abandon() {
+        for (Thread thread : threads) {
+            thread.interrupt();
+        }
+    }
+}
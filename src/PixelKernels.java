@@ -0,0 +1,140 @@
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * The per-pixel loops that hide a bit in each pixel and that turn drawn text into a mask. Both are the same few
+ * integer operations on every pixel of an ARGB array, so besides the scalar loops there is a SIMD version built on
+ * the jdk.incubator.vector module, in src-vector. It is used when it has been compiled and the module is present:
+ *
+ *     javac --add-modules jdk.incubator.vector -d out src/*.java src-vector/*.java
+ *     java --add-modules jdk.incubator.vector -cp out LockoutMaker
+ *
+ * Before the SIMD version is used it is checked against the scalar loops on random pixels, and it must match them bit
+ * for bit. Setting the lockout.vector system property to false always uses the scalar loops.
+ */
+abstract class PixelKernels
+{
+    /** The scalar loops, which work everywhere */
+    final static PixelKernels SCALAR = new Scalar();
+
+    /** The loops used by ImageGenerator and TextMask */
+    final static PixelKernels ACTIVE = select();
+
+    /**
+     * Store pixels from src in dst, opaque, with the bit at shift of each replaced by the pixel's bit in bits
+     *
+     * @param bits one bit per pixel
+     * @param bitIndex the bit of the first pixel
+     * @param dst the pixels to store into
+     * @param dstIndex the first pixel to store
+     * @param src the pixels to copy
+     * @param srcIndex the first pixel to copy
+     * @param length the number of pixels
+     * @param shift the bit of each pixel to replace, 0 to 31
+     */
+    abstract void embedLsb(long[] bits, int bitIndex, int[] dst, int dstIndex, int[] src, int srcIndex, int length,
+                           int shift);
+
+    /**
+     * Set the bit of each pixel whose average of red, green and blue is above 127. Bits that are already set are
+     * left set.
+     *
+     * @param argb the pixels
+     * @param index the first pixel
+     * @param length the number of pixels
+     * @param bits one bit per pixel
+     * @param bitIndex the bit of the first pixel
+     */
+    abstract void threshold(int[] argb, int index, int length, long[] bits, int bitIndex);
+
+    private static PixelKernels select() {
+        if (!Boolean.parseBoolean(System.getProperty("lockout.vector", "true"))
+                || ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return SCALAR;
+        }
+
+        PixelKernels vector;
+        try {
+            vector = (PixelKernels) Class.forName("VectorPixelKernels").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // Not compiled in
+            return SCALAR;
+        }
+
+        if (!matchesScalar(vector)) {
+            System.err.println(vector + " does not match the scalar loops, using them instead");
+            return SCALAR;
+        }
+        return vector;
+    }
+
+    /**
+     * Check that some loops give exactly the same pixels and bits as the scalar loops, at every alignment and for
+     * lengths that do and do not fill whole vectors
+     *
+     * @param kernels the loops to check
+     * @return true if they match
+     */
+    static boolean matchesScalar(PixelKernels kernels) {
+        SplittableRandom random = new SplittableRandom(0x10c0);
+        int[] src = new int[1024];
+        long[] bits = new long[src.length / 64 + 1];
+        for (int i = 0; i < src.length; i++) {
+            src[i] = random.nextInt();
+        }
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = random.nextLong();
+        }
+
+        for (int length = 0; length <= 200; length += length < 40 ? 1 : 37) {
+            for (int offset = 0; offset < 70; offset += 3) {
+                for (int shift : new int[]{0, 8, 16}) {
+                    int[] expected = new int[src.length];
+                    int[] actual = new int[src.length];
+                    SCALAR.embedLsb(bits, offset * 5, expected, offset, src, offset * 2, length, shift);
+                    kernels.embedLsb(bits, offset * 5, actual, offset, src, offset * 2, length, shift);
+                    if (!Arrays.equals(expected, actual)) {
+                        return false;
+                    }
+                }
+
+                long[] expected = new long[bits.length];
+                long[] actual = new long[bits.length];
+                expected[0] = actual[0] = 1;
+                SCALAR.threshold(src, offset * 2, length, expected, offset * 5);
+                kernels.threshold(src, offset * 2, length, actual, offset * 5);
+                if (!Arrays.equals(expected, actual)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    static class Scalar extends PixelKernels {
+        @Override
+        void embedLsb(long[] bits, int bitIndex, int[] dst, int dstIndex, int[] src, int srcIndex, int length,
+                      int shift) {
+            int keep = ~(1 << shift);
+            for (int i = 0; i < length; i++, bitIndex++) {
+                int bit = (int) (bits[bitIndex >>> 6] >>> bitIndex) & 1;
+                dst[dstIndex + i] = 0xff000000 | (src[srcIndex + i] & keep) | (bit << shift);
+            }
+        }
+
+        @Override
+        void threshold(int[] argb, int index, int length, long[] bits, int bitIndex) {
+            for (int i = 0; i < length; i++, bitIndex++) {
+                int rgb = argb[index + i];
+                if (((((rgb >> 16) & 0xff) + ((rgb >> 8) & 0xff) + (rgb & 0xff)) / 3) > 127) {
+                    bits[bitIndex >>> 6] |= 1L << bitIndex;
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "scalar pixel loops";
+        }
+    }
+}
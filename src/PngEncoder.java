@@ -0,0 +1,503 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A PNG encoder tuned for generated lock images. Every pixel is stored exactly, since the codes hidden in the least
+ * significant bits of an image must survive encoding, but the smallest exact color type is chosen for each image:
+ *
+ * - images with at most 256 distinct colors are stored as a palette, with 1, 2, 4 or 8 bits per pixel
+ * - fully opaque images are stored as RGB, without an alpha channel
+ * - anything else is stored as RGBA
+ *
+ * Large images can optionally be compressed in parallel, in independent blocks that are joined into one zlib stream.
+ */
+public class PngEncoder
+{
+    /** The encoder used by ImageGenerator.saveImage unless another is given */
+    public final static PngEncoder DEFAULT = new PngEncoder(Deflater.DEFAULT_COMPRESSION, true, true, false);
+
+    private final static byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+
+    /** The amount of filtered image data compressed by each parallel block */
+    private final static int BLOCK_SIZE = 256 * 1024;
+
+    /** The size of the deflate window, which each parallel block is primed with from the previous block */
+    private final static int WINDOW_SIZE = 32 * 1024;
+
+    private final static int COLOR_RGB = 2;
+    private final static int COLOR_PALETTE = 3;
+    private final static int COLOR_RGBA = 6;
+
+    private final int level;
+    private final boolean allowRgb;
+    private final boolean allowPalette;
+    private final boolean parallel;
+
+    /**
+     * A PNG encoder with the given settings.
+     *
+     * @param level the deflate level, 0 (none) to 9 (smallest), or -1 for the default
+     * @param allowRgb store fully opaque images without an alpha channel
+     * @param allowPalette store images with at most 256 colors as a palette
+     * @param parallel compress images larger than one block on several threads
+     */
+    public PngEncoder(int level, boolean allowRgb, boolean allowPalette, boolean parallel) {
+        if (level < -1 || level > 9) {
+            throw new IllegalArgumentException("deflate level must be -1..9 but was " + level);
+        }
+
+        this.level = level;
+        this.allowRgb = allowRgb;
+        this.allowPalette = allowPalette;
+        this.parallel = parallel;
+    }
+
+    /**
+     * Encode an image as a PNG
+     *
+     * @param img the image to encode
+     * @param out the stream to write the PNG to, which is left open
+     * @throws IOException if the PNG could not be written
+     */
+    public void write(BufferedImage img, OutputStream out) throws IOException {
+        int width = img.getWidth();
+        int height = img.getHeight();
+        int[] argb = argb(img);
+
+        int[] palette = allowPalette ? palette(argb) : null;
+        boolean opaque = true;
+        for (int pixel : argb) {
+            if ((pixel >>> 24) != 0xff) {
+                opaque = false;
+                break;
+            }
+        }
+
+        int colorType;
+        int bitDepth = 8;
+        int bytesPerPixel;
+        if (palette != null) {
+            colorType = COLOR_PALETTE;
+            bitDepth = palette.length <= 2 ? 1 : palette.length <= 4 ? 2 : palette.length <= 16 ? 4 : 8;
+            bytesPerPixel = 1;
+        }
+        else if (opaque && allowRgb) {
+            colorType = COLOR_RGB;
+            bytesPerPixel = 3;
+        }
+        else {
+            colorType = COLOR_RGBA;
+            bytesPerPixel = 4;
+        }
+
+        byte[] filtered = filter(argb, width, height, colorType, bitDepth, bytesPerPixel, palette);
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.write(SIGNATURE);
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+        DataOutputStream headerData = new DataOutputStream(header);
+        headerData.writeInt(width);
+        headerData.writeInt(height);
+        headerData.writeByte(bitDepth);
+        headerData.writeByte(colorType);
+        headerData.writeByte(0);    // deflate
+        headerData.writeByte(0);    // adaptive filtering
+        headerData.writeByte(0);    // not interlaced
+        writeChunk(data, "IHDR", header.toByteArray(), header.size());
+
+        if (palette != null) {
+            byte[] plte = new byte[palette.length * 3];
+            byte[] trns = new byte[palette.length];
+            int trnsLength = 0;
+            for (int i = 0; i < palette.length; i++) {
+                plte[i * 3] = (byte) (palette[i] >> 16);
+                plte[i * 3 + 1] = (byte) (palette[i] >> 8);
+                plte[i * 3 + 2] = (byte) palette[i];
+                trns[i] = (byte) (palette[i] >>> 24);
+                if ((palette[i] >>> 24) != 0xff) {
+                    trnsLength = i + 1;
+                }
+            }
+            writeChunk(data, "PLTE", plte, plte.length);
+            if (trnsLength > 0) {
+                writeChunk(data, "tRNS", trns, trnsLength);
+            }
+        }
+
+        byte[] compressed = parallel && filtered.length > BLOCK_SIZE
+                ? compressParallel(filtered)
+                : compress(filtered);
+        writeChunk(data, "IDAT", compressed, compressed.length);
+
+        writeChunk(data, "IEND", new byte[0], 0);
+        data.flush();
+    }
+
+    /**
+     * Encode an image as a PNG
+     *
+     * @param img the image to encode
+     * @return the PNG file's contents
+     * @throws IOException if the PNG could not be encoded
+     */
+    public byte[] encode(BufferedImage img) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(img, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Get an image's pixels as packed ARGB ints, without copying them if the image already stores them that way
+     */
+    private static int[] argb(BufferedImage img) {
+        int width = img.getWidth();
+        int height = img.getHeight();
+
+        if (img.getType() == BufferedImage.TYPE_INT_ARGB && img.getRaster().getParent() == null) {
+            int[] data = ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+            if (data.length == width * height && img.getRaster().getDataBuffer().getOffset() == 0) {
+                return data;
+            }
+        }
+
+        return img.getRGB(0, 0, width, height, null, 0, width);
+    }
+
+    /**
+     * Find the distinct colors of an image, in order of first appearance.
+     *
+     * @return the colors, or null if there are more than 256
+     */
+    private static int[] palette(int[] argb) {
+        int[] colors = new int[256];
+        int count = 0;
+
+        // Most neighbouring pixels share a color, so check the last one found before searching
+        int last = argb.length > 0 ? ~argb[0] : 0;
+        for (int pixel : argb) {
+            if (pixel == last) {
+                continue;
+            }
+            last = pixel;
+
+            boolean found = false;
+            for (int i = 0; i < count; i++) {
+                if (colors[i] == pixel) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                if (count == colors.length) {
+                    return null;
+                }
+                colors[count++] = pixel;
+            }
+        }
+
+        return Arrays.copyOf(colors, count);
+    }
+
+    /**
+     * Convert the pixels to PNG scanlines, each preceded by its filter type. Palette images are not filtered. Other
+     * images use whichever filter gives the smallest sum of absolute differences for each row, or just the Sub filter
+     * at the fast deflate levels (1 to 3). Rows are filtered in bands on the common fork/join pool when compressing in
+     * parallel.
+     */
+    private byte[] filter(int[] argb, int width, int height, int colorType, int bitDepth, int bytesPerPixel,
+                          int[] palette) throws IOException {
+        int rowBytes = colorType == COLOR_PALETTE ? (width * bitDepth + 7) / 8 : width * bytesPerPixel;
+        byte[] out = new byte[(rowBytes + 1) * height];
+
+        PaletteIndex indices = colorType == COLOR_PALETTE ? new PaletteIndex(palette) : null;
+        boolean adaptive = level < 1 || level > 3;
+
+        int bandRows = Math.max(1, BLOCK_SIZE / (rowBytes + 1));
+        if (!parallel || bandRows >= height) {
+            filterRows(argb, width, 0, height, rowBytes, bitDepth, bytesPerPixel, indices, adaptive, out);
+            return out;
+        }
+
+        List<CompletableFuture<Void>> bands = new ArrayList<>();
+        for (int start = 0; start < height; start += bandRows) {
+            int from = start;
+            int to = Math.min(height, start + bandRows);
+            bands.add(CompletableFuture.runAsync(() ->
+                    filterRows(argb, width, from, to, rowBytes, bitDepth, bytesPerPixel, indices, adaptive, out)));
+        }
+        try {
+            for (CompletableFuture<Void> band : bands) {
+                band.join();
+            }
+        } catch (CompletionException e) {
+            throw new IOException("could not filter image", e.getCause());
+        }
+
+        return out;
+    }
+
+    private static void filterRows(int[] argb, int width, int yFrom, int yTo, int rowBytes, int bitDepth,
+                                   int bytesPerPixel, PaletteIndex indices, boolean adaptive, byte[] out) {
+        byte[] previous = new byte[rowBytes];
+        byte[] current = new byte[rowBytes];
+        byte[][] candidates = new byte[5][rowBytes];
+
+        if (indices == null && yFrom > 0) {
+            toBytes(argb, (yFrom - 1) * width, width, bytesPerPixel, previous);
+        }
+
+        for (int y = yFrom; y < yTo; y++) {
+            int start = y * width;
+            int outIndex = y * (rowBytes + 1);
+
+            if (indices != null) {
+                Arrays.fill(current, (byte) 0);
+                int pixelsPerByte = 8 / bitDepth;
+                for (int x = 0; x < width; x++) {
+                    int shift = 8 - bitDepth * (x % pixelsPerByte + 1);
+                    current[x / pixelsPerByte] |= (byte) (indices.indexOf(argb[start + x]) << shift);
+                }
+
+                out[outIndex] = 0;
+                System.arraycopy(current, 0, out, outIndex + 1, rowBytes);
+                continue;
+            }
+
+            toBytes(argb, start, width, bytesPerPixel, current);
+
+            int best = 1;
+            if (adaptive) {
+                long bestSum = Long.MAX_VALUE;
+                for (int type = 0; type < 5; type++) {
+                    long sum = applyFilter(type, current, previous, bytesPerPixel, candidates[type]);
+                    if (sum < bestSum) {
+                        bestSum = sum;
+                        best = type;
+                    }
+                }
+            }
+            else {
+                applyFilter(best, current, previous, bytesPerPixel, candidates[best]);
+            }
+
+            out[outIndex] = (byte) best;
+            System.arraycopy(candidates[best], 0, out, outIndex + 1, rowBytes);
+
+            byte[] tmp = previous;
+            previous = current;
+            current = tmp;
+        }
+    }
+
+    private static void toBytes(int[] argb, int start, int width, int bytesPerPixel, byte[] row) {
+        for (int x = 0, i = 0; x < width; x++) {
+            int pixel = argb[start + x];
+            row[i++] = (byte) (pixel >> 16);
+            row[i++] = (byte) (pixel >> 8);
+            row[i++] = (byte) pixel;
+            if (bytesPerPixel == 4) {
+                row[i++] = (byte) (pixel >>> 24);
+            }
+        }
+    }
+
+    /**
+     * Apply one of the PNG filters to a row. The row above the first row is all zeros.
+     *
+     * @return the sum of the absolute values of the filtered bytes
+     */
+    private static long applyFilter(int type, byte[] current, byte[] previous, int bpp, byte[] filtered) {
+        int length = current.length;
+        long sum = 0;
+
+        switch (type) {
+            case 0:
+                for (int i = 0; i < length; i++) {
+                    filtered[i] = current[i];
+                    sum += Math.abs(current[i]);
+                }
+                break;
+            case 1:
+                for (int i = 0; i < length; i++) {
+                    int a = i >= bpp ? current[i - bpp] & 0xff : 0;
+                    filtered[i] = (byte) (current[i] - a);
+                    sum += Math.abs(filtered[i]);
+                }
+                break;
+            case 2:
+                for (int i = 0; i < length; i++) {
+                    filtered[i] = (byte) (current[i] - previous[i]);
+                    sum += Math.abs(filtered[i]);
+                }
+                break;
+            case 3:
+                for (int i = 0; i < length; i++) {
+                    int a = i >= bpp ? current[i - bpp] & 0xff : 0;
+                    filtered[i] = (byte) (current[i] - ((a + (previous[i] & 0xff)) >>> 1));
+                    sum += Math.abs(filtered[i]);
+                }
+                break;
+            default:
+                for (int i = 0; i < length; i++) {
+                    int a = i >= bpp ? current[i - bpp] & 0xff : 0;
+                    int c = i >= bpp ? previous[i - bpp] & 0xff : 0;
+                    filtered[i] = (byte) (current[i] - paeth(a, previous[i] & 0xff, c));
+                    sum += Math.abs(filtered[i]);
+                }
+        }
+
+        return sum;
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+
+    private byte[] compress(byte[] data) {
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            return drain(deflater, Deflater.NO_FLUSH, data.length / 2 + 64);
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Compress the data in independent blocks on the common fork/join pool. Each block is a raw deflate stream primed
+     * with the end of the previous block and ended with a sync flush, so the blocks join into one stream that is
+     * wrapped in a single zlib header and checksum.
+     */
+    private byte[] compressParallel(byte[] data) throws IOException {
+        List<CompletableFuture<byte[]>> blocks = new ArrayList<>();
+        for (int start = 0; start < data.length; start += BLOCK_SIZE) {
+            int from = start;
+            int to = Math.min(data.length, start + BLOCK_SIZE);
+            blocks.add(CompletableFuture.supplyAsync(() -> {
+                Deflater deflater = new Deflater(level, true);
+                try {
+                    if (from > 0) {
+                        int dictionary = Math.min(WINDOW_SIZE, from);
+                        deflater.setDictionary(data, from - dictionary, dictionary);
+                    }
+                    deflater.setInput(data, from, to - from);
+                    if (to == data.length) {
+                        deflater.finish();
+                        return drain(deflater, Deflater.NO_FLUSH, (to - from) / 2 + 64);
+                    }
+                    return drain(deflater, Deflater.SYNC_FLUSH, (to - from) / 2 + 64);
+                }
+                finally {
+                    deflater.end();
+                }
+            }));
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+        out.write(0x78);
+        out.write(0x9c);
+        try {
+            for (CompletableFuture<byte[]> block : blocks) {
+                out.write(block.join());
+            }
+        } catch (CompletionException e) {
+            throw new IOException("could not compress image", e.getCause());
+        }
+
+        Adler32 adler = new Adler32();
+        adler.update(data);
+        long checksum = adler.getValue();
+        out.write((int) (checksum >>> 24));
+        out.write((int) (checksum >>> 16));
+        out.write((int) (checksum >>> 8));
+        out.write((int) checksum);
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Collect all of a deflater's output. With SYNC_FLUSH this stops once all input has been flushed, otherwise it
+     * stops once the deflater has finished.
+     */
+    private static byte[] drain(Deflater deflater, int flush, int sizeHint) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(sizeHint);
+        byte[] buffer = new byte[64 * 1024];
+        while (true) {
+            int count = deflater.deflate(buffer, 0, buffer.length, flush);
+            out.write(buffer, 0, count);
+            if (flush == Deflater.SYNC_FLUSH ? count < buffer.length && deflater.needsInput() : deflater.finished()) {
+                break;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * An open addressing hash table from each palette color to its index
+     */
+    private static class PaletteIndex {
+        private final int[] colors = new int[512];
+        private final int[] indices = new int[512];
+        private final boolean[] used = new boolean[512];
+
+        PaletteIndex(int[] palette) {
+            for (int i = 0; i < palette.length; i++) {
+                int slot = slot(palette[i]);
+                while (used[slot]) {
+                    slot = (slot + 1) & 511;
+                }
+                used[slot] = true;
+                colors[slot] = palette[i];
+                indices[slot] = i;
+            }
+        }
+
+        int indexOf(int color) {
+            int slot = slot(color);
+            while (colors[slot] != color || !used[slot]) {
+                slot = (slot + 1) & 511;
+            }
+            return indices[slot];
+        }
+
+        private static int slot(int color) {
+            return (color * 0x9E3779B9) >>> 23;
+        }
+    }
+
+    private static void writeChunk(DataOutputStream out, String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+}
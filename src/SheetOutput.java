@@ -0,0 +1,204 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Where the files of a sprite sheet run are written: into a directory, or streamed one after another into a single
+ * zip or tar archive, so that a run makes a few large sequential writes. An archive is written to a temporary file
+ * and only replaces the archive file once it is closed.
+ */
+abstract class SheetOutput implements Closeable
+{
+    /**
+     * Write a file
+     *
+     * @param name the name of the file
+     * @param data the contents of the file
+     * @throws IOException if the file cannot be written
+     */
+    abstract void write(String name, byte[] data) throws IOException;
+
+    /**
+     * @param name the name of a file
+     * @return true if the name ends in an archive extension that open writes an archive for
+     */
+    static boolean isArchive(String name) {
+        String lower = name.toLowerCase();
+        return lower.endsWith(".zip") || lower.endsWith(".tar");
+    }
+
+    /**
+     * Open the output for a path
+     *
+     * @param path a zip or tar file, chosen by its extension, or else a directory
+     * @return the output
+     * @throws IOException if the output cannot be created
+     */
+    static SheetOutput open(Path path) throws IOException {
+        String name = path.getFileName() == null ? "" : path.getFileName().toString().toLowerCase();
+        if (name.endsWith(".zip")) {
+            return new Zip(path);
+        }
+        if (name.endsWith(".tar")) {
+            return new Tar(path);
+        }
+        return new Directory(path);
+    }
+
+    private static class Directory extends SheetOutput {
+        private final Path dir;
+
+        Directory(Path dir) throws IOException {
+            this.dir = Files.createDirectories(dir);
+        }
+
+        @Override
+        void write(String name, byte[] data) throws IOException {
+            Files.write(dir.resolve(name), data);
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String toString() {
+            return dir.toString();
+        }
+    }
+
+    /**
+     * An archive written to a temporary file beside it
+     */
+    private abstract static class Archive extends SheetOutput {
+        private final Path path;
+        private final Path temp;
+        final OutputStream out;
+
+        Archive(Path path) throws IOException {
+            this.path = path.toAbsolutePath();
+            this.temp = this.path.resolveSibling(this.path.getFileName() + ".tmp");
+            Files.createDirectories(this.path.getParent());
+            this.out = new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16);
+        }
+
+        /**
+         * Write whatever ends the archive
+         */
+        abstract void finish() throws IOException;
+
+        @Override
+        public synchronized void close() throws IOException {
+            finish();
+            out.close();
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        @Override
+        public String toString() {
+            return path.toString();
+        }
+    }
+
+    private static class Zip extends Archive {
+        private final ZipOutputStream zip = new ZipOutputStream(out);
+
+        Zip(Path path) throws IOException {
+            super(path);
+        }
+
+        @Override
+        synchronized void write(String name, byte[] data) throws IOException {
+            ZipEntry entry = new ZipEntry(name);
+            if (name.endsWith(".png")) {
+                // Already compressed
+                CRC32 crc = new CRC32();
+                crc.update(data);
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(data.length);
+                entry.setCrc(crc.getValue());
+            }
+            zip.putNextEntry(entry);
+            zip.write(data);
+            zip.closeEntry();
+        }
+
+        @Override
+        void finish() throws IOException {
+            zip.finish();
+        }
+    }
+
+    /**
+     * A POSIX ustar archive
+     */
+    private static class Tar extends Archive {
+        private final static int BLOCK = 512;
+
+        private final long modified = System.currentTimeMillis() / 1000;
+
+        Tar(Path path) throws IOException {
+            super(path);
+        }
+
+        @Override
+        synchronized void write(String name, byte[] data) throws IOException {
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            if (nameBytes.length > 100) {
+                throw new IOException("tar entry name is too long: " + name);
+            }
+
+            byte[] header = new byte[BLOCK];
+            System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+            octal(header, 100, 8, 0644);
+            octal(header, 108, 8, 0);
+            octal(header, 116, 8, 0);
+            octal(header, 124, 12, data.length);
+            octal(header, 136, 12, modified);
+            header[156] = '0';
+            System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+
+            // The checksum is taken with its own field filled with spaces
+            for (int i = 148; i < 156; i++) {
+                header[i] = ' ';
+            }
+            int checksum = 0;
+            for (byte b : header) {
+                checksum += b & 0xff;
+            }
+            octal(header, 148, 7, checksum);
+
+            out.write(header);
+            out.write(data);
+            out.write(new byte[(BLOCK - data.length % BLOCK) % BLOCK]);
+        }
+
+        @Override
+        void finish() throws IOException {
+            out.write(new byte[2 * BLOCK]);
+        }
+
+        /**
+         * Store a number as zero padded octal digits followed by a NUL, filling the field
+         */
+        private static void octal(byte[] header, int offset, int length, long value) {
+            String digits = Long.toOctalString(value);
+            if (digits.length() > length - 1) {
+                throw new IllegalArgumentException(value + " does not fit in a tar header");
+            }
+            for (int i = 0; i < length - 1; i++) {
+                int digit = i - (length - 1 - digits.length());
+                header[offset + i] = (byte) (digit < 0 ? '0' : digits.charAt(digit));
+            }
+            header[offset + length - 1] = 0;
+        }
+    }
+}
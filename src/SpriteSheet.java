@@ -0,0 +1,200 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One large image holding the images of many locks, each in a slot of its own, so that a run writes a few large files
+ * instead of one small file per lock. Slots are laid out like the slots of an ImageGenerator: numbered from 0 in the
+ * top left, down each column and then across.
+ *
+ * Slots are reserved in order by one thread, and filled by any thread. The sheet is complete once it has been closed
+ * and every reserved slot has been either filled or given up on, and the call that completes it returns true.
+ */
+public class SpriteSheet
+{
+    /** The name of the index of a sprite sheet run */
+    public final static String INDEX_FILE_NAME = "lockout-sheets.json";
+
+    final int number;
+    final String file;
+    final int rows;
+    final int cols;
+    final int slotWidth;
+    final int slotHeight;
+
+    private final String[] lockNames;
+    private final boolean[] filled;
+    private int reserved;
+
+    /** One for each reserved slot that is not yet done, and one until the sheet is closed */
+    private final AtomicInteger pending = new AtomicInteger(1);
+
+    BufferedImage image;
+
+    /** The sheet encoded as a png, once it is complete */
+    byte[] png;
+
+    /**
+     * An empty sheet
+     *
+     * @param number the number of the sheet in its run, from 0
+     * @param rows the number of rows of slots
+     * @param cols the number of columns of slots
+     * @param slotWidth the width of each lock's image
+     * @param slotHeight the height of each lock's image
+     */
+    public SpriteSheet(int number, int rows, int cols, int slotWidth, int slotHeight) {
+        this.number = number;
+        this.file = String.format("sheet-%05d.png", number);
+        this.rows = rows;
+        this.cols = cols;
+        this.slotWidth = slotWidth;
+        this.slotHeight = slotHeight;
+        this.lockNames = new String[rows * cols];
+        this.filled = new boolean[rows * cols];
+        this.image = new BufferedImage(cols * slotWidth, rows * slotHeight, BufferedImage.TYPE_INT_ARGB);
+    }
+
+    /**
+     * @return true if every slot has been reserved
+     */
+    public boolean isFull() {
+        return reserved == lockNames.length;
+    }
+
+    /**
+     * Reserve the next slot for a lock
+     *
+     * @param lockName the name of the lock
+     * @return the slot
+     */
+    public int reserve(String lockName) {
+        if (isFull()) {
+            throw new IllegalStateException(file + " is full");
+        }
+        pending.incrementAndGet();
+        lockNames[reserved] = lockName;
+        return reserved++;
+    }
+
+    /**
+     * Copy a lock's image into its slot
+     *
+     * @param slot a reserved slot
+     * @param lockImage the image, which must be TYPE_INT_ARGB and the size of a slot
+     * @return true if this completes the sheet
+     */
+    public boolean fill(int slot, BufferedImage lockImage) {
+        Rectangle area = getArea(slot);
+        int[] src = ((DataBufferInt) lockImage.getRaster().getDataBuffer()).getData();
+        int[] dst = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        for (int y = 0; y < slotHeight; y++) {
+            System.arraycopy(src, y * slotWidth, dst, (area.y + y) * image.getWidth() + area.x, slotWidth);
+        }
+        filled[slot] = true;
+        return done();
+    }
+
+    /**
+     * Leave a reserved slot empty, because its lock could not be generated
+     *
+     * @return true if this completes the sheet
+     */
+    public boolean giveUp(int slot) {
+        return done();
+    }
+
+    /**
+     * Reserve no more slots
+     *
+     * @return true if this completes the sheet
+     */
+    public boolean close() {
+        return done();
+    }
+
+    private boolean done() {
+        // The decrement orders each fill before whichever call sees the sheet complete
+        return pending.decrementAndGet() == 0;
+    }
+
+    /**
+     * @return the number of slots holding a lock's image
+     */
+    public int size() {
+        int size = 0;
+        for (int slot = 0; slot < reserved; slot++) {
+            if (filled[slot]) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @param slot a slot
+     * @return the slot's place in the sheet
+     */
+    public Rectangle getArea(int slot) {
+        return new Rectangle((slot / rows) * slotWidth, (slot % rows) * slotHeight, slotWidth, slotHeight);
+    }
+
+    /**
+     * Write the index of a run's sheets as JSON, giving the file and size of each sheet and the sheet and rectangle
+     * of each lock. Slots whose locks could not be generated are left out.
+     *
+     * @param sheets the complete sheets, in order of number
+     * @param seed the seed of the run
+     * @param out where to write the index
+     * @throws IOException if the index cannot be written
+     */
+    public static void writeIndex(Collection<SpriteSheet> sheets, long seed, Writer out) throws IOException {
+        out.write("{\n  \"seed\": " + seed + ",\n  \"sheets\": [");
+        String separator = "\n";
+        for (SpriteSheet sheet : sheets) {
+            out.write(separator + "    {\"file\": " + quote(sheet.file) + ", \"width\": " + sheet.cols * sheet.slotWidth
+                    + ", \"height\": " + sheet.rows * sheet.slotHeight + "}");
+            separator = ",\n";
+        }
+
+        out.write("\n  ],\n  \"locks\": {");
+        separator = "\n";
+        for (SpriteSheet sheet : sheets) {
+            for (int slot = 0; slot < sheet.reserved; slot++) {
+                if (!sheet.filled[slot]) {
+                    continue;
+                }
+                Rectangle area = sheet.getArea(slot);
+                out.write(separator + "    " + quote(sheet.lockNames[slot]) + ": {\"sheet\": " + sheet.number
+                        + ", \"x\": " + area.x + ", \"y\": " + area.y + ", \"w\": " + area.width + ", \"h\": "
+                        + area.height + "}");
+                separator = ",\n";
+            }
+        }
+        out.write("\n  }\n}\n");
+    }
+
+    /**
+     * @return s as a JSON string
+     */
+    static String quote(String s) {
+        StringBuilder quoted = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            }
+            else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,359 @@
+import java.awt.*;
+import java.awt.font.FontRenderContext;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The pixels covered by a piece of text drawn centered in a slot, stored as one bit per pixel. Rendering text through
+ * AWT and deciding which pixels belong to it is the same work for every algorithm and every slot, so masks are
+ * cached by (text, slot width, slot height, renderer) and shared between ImageGenerators. When there is a GlyphAtlas,
+ * text is drawn from it instead, without starting Java2D's font system.
+ *
+ * Masks are immutable once created.
+ */
+public class TextMask
+{
+    /** The renderer of text drawn through Java2D */
+    public final static String JAVA2D = "java2d";
+
+    /** The start of the renderer of text drawn from a glyph atlas, followed by the atlas's id */
+    private final static String ATLAS_PREFIX = "atlas:";
+
+    /** The number of masks kept, unless the lockout.textMaskCache.size system property is set */
+    public final static int DEFAULT_CACHE_SIZE = 1024;
+
+    private final static int cacheSize = Integer.getInteger("lockout.textMaskCache.size", DEFAULT_CACHE_SIZE);
+    private final static Map<Key, TextMask> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, TextMask> eldest) {
+            return size() > cacheSize;
+        }
+    };
+
+    private final static int FONT_SIZE_CACHE_SIZE = 4096;
+    private final static float FONT_SIZE_PRECISION = 0.125F;
+    private final static Map<String, Float> fontSizes = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Float> eldest) {
+            return size() > FONT_SIZE_CACHE_SIZE;
+        }
+    };
+
+    final int width;
+    final int height;
+
+    /** Bit (y * width + x) is set if pixel (x, y) is covered by the text */
+    final long[] bits;
+
+    private TextMask(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.bits = new long[(width * height + 63) >>> 6];
+    }
+
+    /**
+     * Get the mask of the given text drawn centered in a slot of the given size, rendering it only if it is not
+     * already cached.
+     *
+     * @param text the text to draw
+     * @param width the width of the slot
+     * @param height the height of the slot
+     * @return the mask of pixels covered by the text
+     */
+    public static TextMask of(String text, int width, int height) {
+        return of(text, width, height, rendererFor(text));
+    }
+
+    /**
+     * Get the mask of the given text drawn centered in a slot of the given size by the given renderer, rendering it
+     * only if it is not already cached.
+     *
+     * @param text the text to draw
+     * @param width the width of the slot
+     * @param height the height of the slot
+     * @param renderer the renderer to draw the text with, as named by rendererFor
+     * @return the mask of pixels covered by the text
+     * @throws IllegalArgumentException if the renderer is a glyph atlas that is not available, or that cannot draw
+     * the text
+     */
+    public static TextMask of(String text, int width, int height, String renderer) {
+        Key key = new Key(text, width, height, renderer);
+
+        synchronized (cache) {
+            TextMask mask = cache.get(key);
+            if (mask != null) {
+                Metrics.count(Metrics.Counter.TEXT_MASK_HITS, 1);
+                return mask;
+            }
+        }
+        Metrics.count(Metrics.Counter.TEXT_MASK_MISSES, 1);
+
+        // Rendering happens outside the lock, two threads racing on the same text just render it twice
+        TextMask mask = render(text, width, height, atlasOf(renderer, text));
+
+        synchronized (cache) {
+            TextMask existing = cache.putIfAbsent(key, mask);
+            return existing != null ? existing : mask;
+        }
+    }
+
+    /**
+     * Combine two masks of the same size
+     *
+     * @param a one mask
+     * @param b the other mask
+     * @return a mask of the pixels covered by either mask
+     */
+    public static TextMask union(TextMask a, TextMask b) {
+        if (a.width != b.width || a.height != b.height) {
+            throw new IllegalArgumentException("masks must be the same size");
+        }
+
+        TextMask mask = new TextMask(a.width, a.height);
+        for (int i = 0; i < mask.bits.length; i++) {
+            mask.bits[i] = a.bits[i] | b.bits[i];
+        }
+        return mask;
+    }
+
+    /**
+     * @param x the column of the pixel within the slot
+     * @param y the row of the pixel within the slot
+     * @return true if pixel (x, y) is covered by the text
+     */
+    public boolean isText(int x, int y) {
+        return bit(y * width + x) != 0;
+    }
+
+    /**
+     * @param index the pixel's index, y * width + x
+     * @return 1 if the pixel is covered by the text, 0 otherwise
+     */
+    int bit(int index) {
+        return (int)(bits[index >>> 6] >>> index) & 1;
+    }
+
+    /**
+     * @return the width of the slot the mask covers
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the height of the slot the mask covers
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the font the text is drawn in
+     */
+    static Font baseFont() {
+        return Java2D.BASE_FONT;
+    }
+
+    /**
+     * Name the renderer that draws the given text. Text drawn from the glyph atlas and through Java2D can differ by a
+     * few pixels, so images record the renderer that drew them.
+     *
+     * @param text the text to draw
+     * @return JAVA2D, or the glyph atlas and its id
+     */
+    public static String rendererFor(String text) {
+        GlyphAtlas atlas = atlasFor(text);
+        return atlas != null ? ATLAS_PREFIX + atlas.getId() : JAVA2D;
+    }
+
+    /**
+     * @return the glyph atlas to draw the text from, or null to draw it through Java2D
+     */
+    private static GlyphAtlas atlasFor(String text) {
+        GlyphAtlas atlas = GlyphAtlas.getShared();
+        return atlas != null && atlas.canDraw(text) ? atlas : null;
+    }
+
+    /**
+     * @return the glyph atlas the renderer draws the text from, or null if it draws through Java2D
+     */
+    private static GlyphAtlas atlasOf(String renderer, String text) {
+        if (renderer.equals(JAVA2D)) {
+            return null;
+        }
+
+        if (!renderer.startsWith(ATLAS_PREFIX)) {
+            throw new IllegalArgumentException("drawn with unknown renderer " + renderer);
+        }
+        String id = renderer.substring(ATLAS_PREFIX.length());
+        GlyphAtlas atlas = GlyphAtlas.getShared();
+        if (atlas == null || !atlas.getId().equals(id)) {
+            throw new IllegalArgumentException("drawn with glyph atlas " + id + ", which is not available");
+        }
+        if (!atlas.canDraw(text)) {
+            throw new IllegalArgumentException("glyph atlas " + id + " cannot draw " + text);
+        }
+        return atlas;
+    }
+
+    private static TextMask render(String text, int width, int height, GlyphAtlas atlas) {
+        if (atlas != null) {
+            return render(atlas, text, width, height);
+        }
+
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics g = img.getGraphics();
+
+        Font font = Java2D.BASE_FONT.deriveFont(fitFontSize(null, text, width, height));
+        g.setFont(font);
+        Rectangle2D rect = font.getStringBounds(text, Java2D.FONT_RENDER_CONTEXT);
+
+        // Calculate the offsets to center the text in the space
+        int offsetX = (width / 2) - (int)(rect.getWidth() / 2);
+        int offsetY =  (height / 2) + (int)(rect.getHeight() / 2);
+
+        g.drawString(text, offsetX, offsetY);
+        g.dispose();
+
+        TextMask mask = new TextMask(width, height);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            img.getRGB(0, y, width, 1, row, 0, width);
+            PixelKernels.ACTIVE.threshold(row, 0, width, mask.bits, y * width);
+        }
+
+        return mask;
+    }
+
+    /**
+     * Draw the text from the glyph atlas, placed the same way as text drawn through Java2D
+     */
+    private static TextMask render(GlyphAtlas atlas, String text, int width, int height) {
+        float size = fitFontSize(atlas, text, width, height);
+
+        int offsetX = (width / 2) - atlas.getWidth(text, size) / 2;
+        int offsetY =  (height / 2) + (int)(atlas.getHeight(size) / 2);
+
+        TextMask mask = new TextMask(width, height);
+        atlas.draw(text, size, offsetX, offsetY, mask.bits, width, height);
+        return mask;
+    }
+
+    /**
+     * Find the largest font size at which the text fits in the slot. Sizes are remembered by the shape of the text
+     * rather than the text itself, with every digit treated as a 0, since digits are the same width in practically
+     * every font and most codes differ only in their digits. If the remembered size does not fit this exact text,
+     * it is searched for again. Text drawn from the glyph atlas is measured with the atlas's metrics.
+     *
+     * @param atlas the glyph atlas the text is drawn from, or null if it is drawn through Java2D
+     * @param text the text to fit
+     * @param width the width of the slot
+     * @param height the height of the slot
+     * @return the font size to draw the text at
+     */
+    static float fitFontSize(GlyphAtlas atlas, String text, int width, int height) {
+        StringBuilder key = new StringBuilder(text.length() + 32);
+        if (atlas != null) {
+            key.append(atlas.fontName).append("/atlas/").append(atlas.getId()).append('/');
+        }
+        else {
+            key.append(Java2D.BASE_FONT.getName()).append('/').append(Java2D.BASE_FONT.getStyle()).append('/');
+        }
+        key.append(width).append('x').append(height).append('/');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            key.append(c >= '0' && c <= '9' ? '0' : c);
+        }
+
+        Float size;
+        synchronized (fontSizes) {
+            size = fontSizes.get(key.toString());
+        }
+        if (size != null && fits(atlas, text, size, width, height)) {
+            return size;
+        }
+
+        // Searching happens outside the lock, two threads racing on the same shape just search twice
+        size = searchFontSize(atlas, text, width, height);
+        synchronized (fontSizes) {
+            fontSizes.put(key.toString(), size);
+        }
+
+        return size;
+    }
+
+    /**
+     * Binary search for the largest font size, up to the slot height, at which the text fits in the slot
+     */
+    private static float searchFontSize(GlyphAtlas atlas, String text, int width, int height) {
+        if (fits(atlas, text, height, width, height)) {
+            return height;
+        }
+
+        float small = 0;
+        float large = height;
+        while (large - small > FONT_SIZE_PRECISION) {
+            float middle = (small + large) / 2;
+            if (fits(atlas, text, middle, width, height)) {
+                small = middle;
+            }
+            else {
+                large = middle;
+            }
+        }
+
+        return small;
+    }
+
+    private static boolean fits(GlyphAtlas atlas, String text, float size, int width, int height) {
+        if (atlas != null) {
+            return atlas.getHeight(size) <= height && atlas.getWidth(text, size) <= width;
+        }
+
+        Rectangle2D rect = Java2D.BASE_FONT.deriveFont(size).getStringBounds(text, Java2D.FONT_RENDER_CONTEXT);
+        return rect.getHeight() <= height && rect.getWidth() <= width;
+    }
+
+    /**
+     * The fonts of Java2D, which are only loaded once text is drawn without the glyph atlas
+     */
+    private static class Java2D {
+        /** The font Graphics uses by default, which the text is drawn in */
+        final static Font BASE_FONT = new Font(Font.DIALOG, Font.PLAIN, 12);
+
+        /** Measures text the way a Graphics for a BufferedImage does, with no transform or antialiasing */
+        final static FontRenderContext FONT_RENDER_CONTEXT = new FontRenderContext(null, false, false);
+    }
+
+    private static class Key {
+        final String text;
+        final int width;
+        final int height;
+        final String renderer;
+
+        Key(String text, int width, int height, String renderer) {
+            this.text = text;
+            this.width = width;
+            this.height = height;
+            this.renderer = renderer;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return width == other.width && height == other.height && text.equals(other.text)
+                    && renderer.equals(other.renderer);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(text, width, height, renderer);
+        }
+    }
+}